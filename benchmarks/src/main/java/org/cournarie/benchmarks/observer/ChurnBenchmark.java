@@ -0,0 +1,63 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.benchmarks.observer;
+
+import java.util.concurrent.TimeUnit;
+import org.cournarie.patterns.observer.EventListeners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link EventListeners#fireEvent} throughput while other threads subscribe and unsubscribe.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChurnBenchmark {
+
+    /** Registered listeners. */
+    @Param({"10", "1000", "10000"})
+    private int listenerCount;
+    /** The listeners. */
+    private final EventListeners listeners = new EventListeners();
+
+    /**
+     * Registers the listeners.
+     */
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < listenerCount; i++) {
+            listeners.addListener(Sink.Hit.class, new Sink(), Sink.HIT);
+        }
+    }
+
+    /**
+     * Publishers.
+     * @param publisher
+     */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public void fire(Sink.Publisher publisher) {
+        listeners.fireEvent(publisher.event);
+    }
+
+    /**
+     * A session coming and going.
+     */
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void subscribe() {
+        listeners.addListener(Sink.Hit.class, new Sink(), Sink.HIT).close();
+    }
+}
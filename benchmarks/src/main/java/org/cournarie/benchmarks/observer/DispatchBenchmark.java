@@ -0,0 +1,75 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.benchmarks.observer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import org.cournarie.patterns.observer.EventListeners;
+import org.cournarie.patterns.observer.EventObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of a listener call: reflection, against the {@code invokeExact} call of a method
+ * handle of the same shape as the callback invokers, and against a whole
+ * {@link EventListeners#fireEvent} to a single listener.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+    /** The listener. */
+    private final Sink sink = new Sink();
+    /** The listeners, with the sink only. */
+    private final EventListeners listeners = new EventListeners();
+    /** The sent event. */
+    private final Sink.Hit event = new Sink.Hit(this);
+    /** The (target, event) -> void invoker of the sink. */
+    private MethodHandle invoker;
+
+    /**
+     * Registers the sink and creates its invoker.
+     * @throws IllegalAccessException if the sink method is not accessible
+     */
+    @Setup
+    public void setUp() throws IllegalAccessException {
+        listeners.addListener(Sink.Hit.class, sink, Sink.HIT);
+        invoker = MethodHandles.lookup().unreflect(Sink.HIT)
+                .asType(MethodType.methodType(void.class, Object.class, EventObject.class));
+    }
+
+    /**
+     * A reflective call.
+     * @throws ReflectiveOperationException
+     */
+    @Benchmark
+    public void methodInvoke() throws ReflectiveOperationException {
+        Sink.HIT.invoke(sink, event);
+    }
+
+    /**
+     * A method handle call.
+     * @throws Throwable
+     */
+    @Benchmark
+    public void invokeExact() throws Throwable {
+        invoker.invokeExact((Object) sink, (EventObject) event);
+    }
+
+    /**
+     * A dispatch to the single listener.
+     */
+    @Benchmark
+    public void fireEvent() {
+        listeners.fireEvent(event);
+    }
+}
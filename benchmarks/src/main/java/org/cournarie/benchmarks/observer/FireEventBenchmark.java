@@ -0,0 +1,82 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.benchmarks.observer;
+
+import java.util.concurrent.TimeUnit;
+import org.cournarie.patterns.observer.EventListeners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * {@link EventListeners#fireEvent} throughput and latency, by listener count and by share of
+ * listeners matching the fired event type.
+ * <p>
+ * Run with {@code -prof gc} for the allocation rate per event.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FireEventBenchmark {
+
+    /** Registered listeners. */
+    @Param({"1", "10", "100", "1000", "10000"})
+    private int listenerCount;
+    /** Percentage of listeners registered on the fired event type. */
+    @Param({"100", "50", "10"})
+    private int matchingPercent;
+    /** The listeners. */
+    private final EventListeners listeners = new EventListeners();
+
+    /**
+     * Registers the listeners, at least one matches.
+     */
+    @Setup
+    public void setUp() {
+        final int matching = Math.max(1, listenerCount * matchingPercent / 100);
+        for (int i = 0; i < listenerCount; i++) {
+            if (i < matching) {
+                listeners.addListener(Sink.Hit.class, new Sink(), Sink.HIT);
+            } else {
+                listeners.addListener(Sink.Miss.class, new Sink(), Sink.MISS);
+            }
+        }
+    }
+
+    /**
+     * Single publisher throughput.
+     * @param publisher
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    public void fire(Sink.Publisher publisher) {
+        listeners.fireEvent(publisher.event);
+    }
+
+    /**
+     * Single publisher latency distribution.
+     * @param publisher
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void fireLatency(Sink.Publisher publisher) {
+        listeners.fireEvent(publisher.event);
+    }
+
+    /**
+     * Concurrent publishers throughput, use {@code -t} for another thread count.
+     * @param publisher
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @Threads(4)
+    public void fireContended(Sink.Publisher publisher) {
+        listeners.fireEvent(publisher.event);
+    }
+}
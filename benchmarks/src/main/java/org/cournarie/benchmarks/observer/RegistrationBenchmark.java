@@ -0,0 +1,67 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.benchmarks.observer;
+
+import java.util.concurrent.TimeUnit;
+import org.cournarie.patterns.observer.EventListeners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Registration cost, by number of already registered listeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegistrationBenchmark {
+
+    /** Already registered listeners. */
+    @Param({"10", "1000", "10000"})
+    private int listenerCount;
+    /** The listeners. */
+    private final EventListeners listeners = new EventListeners();
+    /** The added listener. */
+    private final Sink sink = new Sink();
+
+    /**
+     * Registers the listeners.
+     */
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < listenerCount; i++) {
+            listeners.addListener(Sink.Hit.class, new Sink(), Sink.HIT);
+        }
+    }
+
+    /**
+     * Adds then removes a listener by lookup.
+     */
+    @Benchmark
+    public void addRemove() {
+        listeners.addListener(Sink.Hit.class, sink, Sink.HIT);
+        listeners.removeListener(Sink.Hit.class, sink, Sink.HIT);
+    }
+
+    /**
+     * Adds a listener then closes its subscription.
+     */
+    @Benchmark
+    public void addClose() {
+        listeners.addListener(Sink.Hit.class, sink, Sink.HIT).close();
+    }
+
+    /**
+     * Registers an annotated listener then closes its subscription.
+     */
+    @Benchmark
+    public void registerClose() {
+        listeners.register(sink).close();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.benchmarks.observer;
+
+import java.lang.reflect.Method;
+import org.cournarie.patterns.observer.EventObject;
+import org.cournarie.patterns.observer.Subscribe;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark events and listener.
+ * <p>
+ * A sink is shared by the publisher threads, it keeps no state: the calls are counted on
+ * the event, one per publisher thread.
+ */
+public class Sink {
+
+    /** Called on hits. */
+    static final Method HIT;
+    /** Called on misses, never fired. */
+    static final Method MISS;
+
+    static {
+        try {
+            HIT = Sink.class.getDeclaredMethod("hit", new Class[]{Hit.class});
+            MISS = Sink.class.getDeclaredMethod("miss", new Class[]{Miss.class});
+        } catch (final java.lang.NoSuchMethodException e) {
+            throw new java.lang.RuntimeException("Internal error", e);
+        }
+    }
+
+    /**
+     * Receives a fired event.
+     * @param evt
+     */
+    @Subscribe
+    public void hit(Hit evt) {
+        evt.received += 1;
+    }
+
+    /**
+     * Receives a never fired event.
+     * @param evt
+     */
+    @Subscribe
+    public void miss(Miss evt) {
+        evt.received += 1;
+    }
+
+    /**
+     * The fired event type.
+     */
+    public static class Hit extends EventObject<Object> {
+
+        /** Deliveries, keeps the calls alive. */
+        private long received;
+
+        /**
+         * Creates a new event.
+         * @param src
+         */
+        public Hit(Object src) {
+            super(src);
+        }
+
+        /**
+         * Gets the number of deliveries.
+         * @return the count
+         */
+        public long getReceived() {
+            return received;
+        }
+    }
+
+    /**
+     * The other event type, listened to but never fired.
+     */
+    public static class Miss extends EventObject<Object> {
+
+        /** Deliveries. */
+        private long received;
+
+        /**
+         * Creates a new event.
+         * @param src
+         */
+        public Miss(Object src) {
+            super(src);
+        }
+    }
+
+    /**
+     * The event of a publisher thread.
+     */
+    @State(Scope.Thread)
+    public static class Publisher {
+
+        /** The fired event. */
+        final Hit event = new Hit(this);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import org.apache.log4j.Logger;
+
+/**
+ * Event listeners delivering events on an executor.
+ * <p>
+ * Each listener is called from its own serial lane on the executor: a slow listener
+ * does not hold the publisher nor the other listeners, and it receives the events in
+ * the order they were fired. The failures of the listeners fired without a future are
+ * logged.
+ * @author eric
+ */
+public class AsyncEventListeners extends EventListeners {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(AsyncEventListeners.class);
+    /** The executor running the callbacks. */
+    private final Executor executor;
+    /** Delivery lane per callback. */
+    private final ConcurrentMap<EventCallback, SerialExecutor> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new asynchronous event listeners.
+     * @param executor the executor running the callbacks, it must not reject tasks
+     */
+    public AsyncEventListeners(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    void pruned() {
+        // drop the lanes of removed callbacks, their queued tasks still run and ignore the events
+        lanes.keySet().removeIf(EventCallback::isCancelled);
+    }
+
+    @Override
+    void deliverSticky(EventCallback callback, EventObject<?> event) {
+        lane(callback).execute(() -> super.deliverSticky(callback, event));
+    }
+
+    /**
+     * Fires an event without waiting for the listeners, their failures are logged.
+     * @param event
+     * @throws IllegalArgumentException if the event is pooled
+     */
+    @Override
+    public void fireEvent(EventObject<?> event) {
+        checkDeferrable(event);
+        for (EventCallback callback : dispatch(event)) {
+            lane(callback).execute(() -> {
+                try {
+                    send(callback, event);
+                } catch (EventCallback.MethodException ex) {
+                    LOGGER.error("Listener failure", ex);
+                }
+            });
+        }
+    }
+
+    /**
+     * Not supported: delivery is deferred, the event would be released before use.
+     * @param event
+     */
+    @Override
+    public void fireAndRelease(PooledEvent<?> event) {
+        throw new UnsupportedOperationException("Pooled events need synchronous delivery");
+    }
+
+    /**
+     * Fires a batch of events without waiting for the listeners.
+     * <p>
+     * Events are queued one by one on the listener lanes, batch listeners get them as
+     * lists of one event. Listener failures are logged.
+     * @param events
+     */
+    @Override
+    public void fireEvents(Collection<? extends EventObject<?>> events) {
+        events.forEach(this::fireEvent);
+    }
+
+    /**
+     * Fires an event.
+     * <p>
+     * The future fails with the first {@link EventCallback.MethodException} raised, once
+     * every listener has run.
+     * @param event
+     * @return a future completed when every listener has been called
+     * @throws IllegalArgumentException if the event is pooled
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Void> fireEventAsync(EventObject<?> event) {
+        checkDeferrable(event);
+        final EventCallback[] callings = dispatch(event);
+        if (callings.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void>[] calls = new CompletableFuture[callings.length];
+        for (int i = 0; i < callings.length; i++) {
+            final EventCallback callback = callings[i];
+            final CompletableFuture<Void> call = new CompletableFuture<>();
+            lane(callback).execute(() -> send(callback, event, call));
+            calls[i] = call;
+        }
+        return calls.length == 1 ? calls[0] : CompletableFuture.allOf(calls);
+    }
+
+    /**
+     * Gets the delivery lane of a callback.
+     * <p>
+     * A removed callback gets no new lane: a delivery from an older registry must not run
+     * it beside its draining lane; it ignores the event anyway.
+     * @param callback
+     * @return the lane, the calling thread for a removed callback
+     */
+    private Executor lane(EventCallback callback) {
+        final SerialExecutor lane = lanes.get(callback);
+        if (lane != null) {
+            return lane;
+        }
+        if (callback.isCancelled()) {
+            return Runnable::run;
+        }
+        final SerialExecutor created = lanes.computeIfAbsent(callback, c -> new SerialExecutor(executor));
+        if (callback.isCancelled()) {
+            // removed meanwhile, maybe pruned before the lane was added: not left behind
+            lanes.remove(callback, created);
+        }
+        return created;
+    }
+
+    /**
+     * Sends an event and reports the outcome.
+     * @param callback
+     * @param event
+     * @param call
+     */
+    private void send(EventCallback callback, EventObject<?> event, CompletableFuture<Void> call) {
+        try {
+            send(callback, event);
+            call.complete(null);
+        } catch (RuntimeException ex) {
+            call.completeExceptionally(ex);
+        }
+    }
+}
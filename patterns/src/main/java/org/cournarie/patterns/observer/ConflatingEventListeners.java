@@ -0,0 +1,160 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Event listeners delivering only the latest event per key.
+ * <p>
+ * Each listener has its pending events, at most one per key: an event replaces the pending
+ * one with the same key, keeping its place. A listener falling behind thus gets the current
+ * state of each key, and a drain cycle does at most one call per key.
+ * <p>
+ * Listener failures are logged and do not stop the delivery.
+ * @author eric
+ */
+public class ConflatingEventListeners
+        extends LaneEventListeners<ConflatingEventListeners.ConflatingLane, ConflatingSubscription> {
+
+    /** The conflation key of an event. */
+    private final Function<? super EventObject<?>, ?> keyExtractor;
+
+    /**
+     * Creates a new conflating event listeners.
+     * @param executor the executor running the drain tasks, it must not reject tasks
+     * @param keyExtractor the conflation key of an event, for instance {@code EventObject::getSource}
+     */
+    public ConflatingEventListeners(Executor executor, Function<? super EventObject<?>, ?> keyExtractor) {
+        super(executor);
+        this.keyExtractor = keyExtractor;
+    }
+
+    @Override
+    ConflatingLane createLane(EventCallback callback) {
+        return new ConflatingLane(callback, this, keyExtractor);
+    }
+
+    @Override
+    ConflatingSubscription createSubscription(Subscription subscription, List<ConflatingLane> added) {
+        return new KeyedSubscription(subscription, added);
+    }
+
+    /**
+     * The pending events of a callback, by key.
+     */
+    static final class ConflatingLane extends LaneEventListeners.Lane {
+
+        /** The conflation key of an event. */
+        private final Function<? super EventObject<?>, ?> keyExtractor;
+        /** Conflated events. */
+        private final AtomicLong conflated = new AtomicLong();
+        /** Pending events by key, in first offer order, guarded by this. */
+        private Map<Object, EventObject<?>> pending = new LinkedHashMap<>();
+
+        /**
+         * Creates a new lane.
+         * @param callback
+         * @param owner
+         * @param keyExtractor
+         */
+        private ConflatingLane(EventCallback callback, ConflatingEventListeners owner,
+                Function<? super EventObject<?>, ?> keyExtractor) {
+            super(callback, owner);
+            this.keyExtractor = keyExtractor;
+        }
+
+        @Override
+        void offer(EventObject<?> event) {
+            final Object key = keyExtractor.apply(event);
+            synchronized (this) {
+                if (pending.put(key, event) != null) {
+                    conflated.incrementAndGet();
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        void drain() {
+            final Map<Object, EventObject<?>> drained;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                drained = pending;
+                pending = new LinkedHashMap<>();
+            }
+            deliver(new ArrayList<>(drained.values()));
+        }
+
+        @Override
+        synchronized boolean hasPending() {
+            return !pending.isEmpty();
+        }
+
+        /**
+         * Gets the number of pending keys.
+         * @return the pending count
+         */
+        synchronized int size() {
+            return pending.size();
+        }
+    }
+
+    /**
+     * A registration with its conflation lanes.
+     */
+    private static final class KeyedSubscription implements ConflatingSubscription {
+
+        /** The registration. */
+        private final Subscription subscription;
+        /** The lanes of the registered callbacks. */
+        private final List<ConflatingLane> lanes;
+
+        /**
+         * Creates a new subscription.
+         * @param subscription
+         * @param lanes
+         */
+        private KeyedSubscription(Subscription subscription, List<ConflatingLane> lanes) {
+            this.subscription = subscription;
+            this.lanes = lanes;
+        }
+
+        @Override
+        public void close() {
+            subscription.close();
+        }
+
+        @Override
+        public boolean isActive() {
+            return subscription.isActive();
+        }
+
+        @Override
+        public int getPendingCount() {
+            int count = 0;
+            for (ConflatingLane lane : lanes) {
+                count += lane.size();
+            }
+            return count;
+        }
+
+        @Override
+        public long getConflatedCount() {
+            long count = 0;
+            for (ConflatingLane lane : lanes) {
+                count += lane.conflated.get();
+            }
+            return count;
+        }
+    }
+}
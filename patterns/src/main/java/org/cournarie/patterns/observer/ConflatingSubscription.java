@@ -0,0 +1,22 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * A registration on {@link ConflatingEventListeners}, with its conflation counters.
+ */
+public interface ConflatingSubscription extends Subscription {
+
+    /**
+     * Gets the number of keys with an event waiting for delivery.
+     * @return the pending count
+     */
+    int getPendingCount();
+
+    /**
+     * Gets the number of events replaced by a later one of the same key before delivery.
+     * @return the conflated count
+     */
+    long getConflatedCount();
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Dispatch instrumentation of {@link EventListeners}.
+ * <p>
+ * Counts the fired events per event type and times every listener call: per listener,
+ * that is per method and target, it keeps the call and failure counts and a latency
+ * histogram. A call slower than the threshold is counted; the first one of a listener is
+ * logged as a warning, then at most one per listener every {@link #SLOW_LOG_PERIOD_SECONDS}.
+ * <p>
+ * A monitor is enabled with {@link EventListeners#setMonitor(DispatchMonitor)}; without
+ * one, dispatch is not instrumented at all. It can be shared by several listeners, and
+ * published on JMX with {@link #register(String)}. The statistics of a listener are
+ * dropped once it is removed.
+ * @author eric
+ */
+public class DispatchMonitor implements DispatchMonitorMBean {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(DispatchMonitor.class);
+    /** Histogram size: bucket i counts calls of [2^i, 2^(i+1)) nanoseconds. */
+    public static final int BUCKETS = 64;
+    /** Least period between two slow call warnings of a listener. */
+    public static final long SLOW_LOG_PERIOD_SECONDS = 10;
+    /** Fired events per event type. */
+    private final ConcurrentMap<Class<?>, LongAdder> events = new ConcurrentHashMap<>();
+    /** Statistics per callback identifier. */
+    private final ConcurrentMap<Long, ListenerStatistics> listeners = new ConcurrentHashMap<>();
+    /** Slow calls. */
+    private final LongAdder slowCalls = new LongAdder();
+    /** Slow call threshold. */
+    private volatile long slowThresholdNanos;
+
+    /**
+     * Creates a new monitor.
+     * @param slowThreshold the slow call threshold
+     * @param unit the threshold unit
+     */
+    public DispatchMonitor(long slowThreshold, TimeUnit unit) {
+        slowThresholdNanos = unit.toNanos(slowThreshold);
+    }
+
+    /**
+     * Registers this monitor on the platform MBean server.
+     * @param name the monitor name, unique in this JVM
+     * @return the MBean object name
+     * @throws IllegalStateException if the registration fails
+     */
+    public ObjectName register(String name) {
+        try {
+            final ObjectName objectName = objectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException ex) {
+            throw new IllegalStateException("Cannot register dispatch monitor '" + name + "'", ex);
+        }
+    }
+
+    /**
+     * Unregisters a monitor from the platform MBean server.
+     * @param name the monitor name
+     * @throws IllegalStateException if the unregistration fails
+     */
+    public static void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+        } catch (JMException ex) {
+            throw new IllegalStateException("Cannot unregister dispatch monitor '" + name + "'", ex);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the counters.
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        final Map<Class<?>, Long> eventCounts = new LinkedHashMap<>();
+        events.forEach((type, count) -> eventCounts.put(type, count.sum()));
+        final List<ListenerSnapshot> listenerSnapshots = new ArrayList<>(listeners.size());
+        listeners.values().forEach(stats -> listenerSnapshots.add(stats.snapshot()));
+        return new Snapshot(eventCounts, listenerSnapshots, slowCalls.sum());
+    }
+
+    @Override
+    public long getEventCount() {
+        long count = 0;
+        for (LongAdder adder : events.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getCallCount() {
+        long count = 0;
+        for (ListenerStatistics stats : listeners.values()) {
+            count += stats.calls.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getFailureCount() {
+        long count = 0;
+        for (ListenerStatistics stats : listeners.values()) {
+            count += stats.failures.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public long getSlowCount() {
+        return slowCalls.sum();
+    }
+
+    @Override
+    public long getSlowThresholdMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(slowThresholdNanos);
+    }
+
+    @Override
+    public void setSlowThresholdMicros(long micros) {
+        slowThresholdNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    @Override
+    public String[] getEventCounts() {
+        final List<String> lines = new ArrayList<>();
+        events.forEach((type, count) -> lines.add(type.getName() + "=" + count.sum()));
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String[] getListenerStatistics() {
+        final List<String> lines = new ArrayList<>();
+        listeners.values().forEach(stats -> lines.add(stats.snapshot().toString()));
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public void reset() {
+        events.clear();
+        listeners.clear();
+        slowCalls.reset();
+    }
+
+    /**
+     * Counts a fired event.
+     * @param eventClass
+     */
+    void fired(Class<?> eventClass) {
+        LongAdder count = events.get(eventClass);
+        if (count == null) {
+            count = events.computeIfAbsent(eventClass, c -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * Drops the statistics of a cancelled callback.
+     * @param callback
+     */
+    void removed(EventCallback callback) {
+        listeners.remove(callback.id);
+    }
+
+    /**
+     * Sends an event to a callback and times the call.
+     * @param callback
+     * @param event
+     * @throws EventCallback.MethodException
+     */
+    void send(EventCallback callback, EventObject<?> event) {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            callback.sendEvent(event);
+            failed = false;
+        } finally {
+            record(callback, event, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Sends events to a callback and times the call.
+     * @param callback
+     * @param batch
+     * @throws EventCallback.MethodException
+     */
+    void sendAll(EventCallback callback, List<? extends EventObject<?>> batch) {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            callback.sendEvents(batch);
+            failed = false;
+        } finally {
+            record(callback, batch, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Records a listener call.
+     * @param callback
+     * @param what the event or events sent
+     * @param nanos the call duration
+     * @param failed true if the call failed
+     */
+    private void record(EventCallback callback, Object what, long nanos, boolean failed) {
+        ListenerStatistics stats = listeners.get(callback.id);
+        if (stats == null) {
+            stats = listeners.computeIfAbsent(callback.id,
+                    id -> new ListenerStatistics(callback.getMethod(), callback.targetName()));
+            if (callback.isCancelled()) {
+                // call in flight on removal: not left behind
+                listeners.remove(callback.id, stats);
+            }
+        }
+        stats.record(nanos, failed);
+        if (nanos > slowThresholdNanos) {
+            slowCalls.increment();
+            final long suppressed = stats.slow();
+            if (suppressed >= 0 && LOGGER.isEnabledFor(Level.WARN)) {
+                LOGGER.warn("Slow listener " + stats.name() + ": " + TimeUnit.NANOSECONDS.toMicros(nanos)
+                        + " us for '" + what + "'"
+                        + (suppressed == 0 ? "" : ", " + suppressed + " slow calls not logged before"));
+            }
+        }
+    }
+
+    /**
+     * Gets the object name of a monitor.
+     * @param name
+     * @return the object name
+     * @throws JMException if the name is invalid
+     */
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(DispatchMonitor.class.getPackage().getName()
+                + ":type=DispatchMonitor,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Live statistics of a listener.
+     */
+    private static final class ListenerStatistics {
+
+        /** The listener method. */
+        private final Method method;
+        /** The listener target name. */
+        private final String target;
+        /** Slow calls not logged since the last warning. */
+        private final AtomicLong unlogged = new AtomicLong();
+        /** When the last slow call warning was logged, in ns, 0 for never. */
+        private final AtomicLong logged = new AtomicLong();
+        /** Calls. */
+        private final LongAdder calls = new LongAdder();
+        /** Failed calls. */
+        private final LongAdder failures = new LongAdder();
+        /** Total call time. */
+        private final LongAdder totalNanos = new LongAdder();
+        /** Longest call time. */
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        /** Latency histogram. */
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        /**
+         * Creates new statistics.
+         * @param method
+         * @param target
+         */
+        private ListenerStatistics(Method method, String target) {
+            this.method = method;
+            this.target = target;
+        }
+
+        /**
+         * Names the listener.
+         * @return the method and target names
+         */
+        private String name() {
+            return method.getDeclaringClass().getName() + "." + method.getName() + " of " + target;
+        }
+
+        /**
+         * Counts a slow call, and tells whether to log it.
+         * @return the slow calls not logged since the last warning, -1 not to log this one
+         */
+        private long slow() {
+            final long now = System.nanoTime();
+            final long last = logged.get();
+            if (last != 0 && now - last < TimeUnit.SECONDS.toNanos(SLOW_LOG_PERIOD_SECONDS)
+                    || !logged.compareAndSet(last, now == 0 ? 1 : now)) {
+                unlogged.incrementAndGet();
+                return -1;
+            }
+            return unlogged.getAndSet(0);
+        }
+
+        /**
+         * Records a call.
+         * @param nanos
+         * @param failed
+         */
+        private void record(long nanos, boolean failed) {
+            calls.increment();
+            if (failed) {
+                failures.increment();
+            }
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            histogram.incrementAndGet(nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos));
+        }
+
+        /**
+         * Takes a snapshot.
+         * @return the snapshot
+         */
+        private ListenerSnapshot snapshot() {
+            final long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = histogram.get(i);
+            }
+            return new ListenerSnapshot(method, target, calls.sum(), failures.sum(), totalNanos.sum(),
+                    maxNanos.get(), buckets);
+        }
+    }
+
+    /**
+     * Counters of a monitor at a given time.
+     */
+    public static final class Snapshot {
+
+        /** Fired events per event type. */
+        private final Map<Class<?>, Long> eventCounts;
+        /** Statistics per listener. */
+        private final List<ListenerSnapshot> listeners;
+        /** Slow calls. */
+        private final long slowCount;
+
+        /**
+         * Creates a new snapshot.
+         * @param eventCounts
+         * @param listeners
+         * @param slowCount
+         */
+        private Snapshot(Map<Class<?>, Long> eventCounts, List<ListenerSnapshot> listeners, long slowCount) {
+            this.eventCounts = Collections.unmodifiableMap(eventCounts);
+            this.listeners = Collections.unmodifiableList(listeners);
+            this.slowCount = slowCount;
+        }
+
+        /**
+         * Gets the fired events per event type.
+         * @return the event counts
+         */
+        public Map<Class<?>, Long> getEventCounts() {
+            return eventCounts;
+        }
+
+        /**
+         * Gets the statistics per listener.
+         * @return the listener statistics
+         */
+        public List<ListenerSnapshot> getListeners() {
+            return listeners;
+        }
+
+        /**
+         * Gets the statistics of the listeners of a method, one per target.
+         * @param method
+         * @return the statistics, empty if never called
+         */
+        public List<ListenerSnapshot> getListeners(Method method) {
+            final List<ListenerSnapshot> found = new ArrayList<>();
+            for (ListenerSnapshot listener : listeners) {
+                if (listener.getMethod().equals(method)) {
+                    found.add(listener);
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Gets the statistics of the single listener of a method.
+         * @param method
+         * @return the statistics, null if never called
+         * @throws IllegalStateException if the method has several listeners
+         */
+        public ListenerSnapshot getListener(Method method) {
+            final List<ListenerSnapshot> found = getListeners(method);
+            if (found.size() > 1) {
+                throw new IllegalStateException(found.size() + " listeners of " + method);
+            }
+            return found.isEmpty() ? null : found.get(0);
+        }
+
+        /**
+         * Gets the number of calls slower than the threshold.
+         * @return the slow call count
+         */
+        public long getSlowCount() {
+            return slowCount;
+        }
+    }
+
+    /**
+     * Statistics of a listener at a given time.
+     */
+    public static final class ListenerSnapshot {
+
+        /** The listener method. */
+        private final Method method;
+        /** The listener target name. */
+        private final String target;
+        /** Calls. */
+        private final long callCount;
+        /** Failed calls. */
+        private final long failureCount;
+        /** Total call time. */
+        private final long totalNanos;
+        /** Longest call time. */
+        private final long maxNanos;
+        /** Latency histogram. */
+        private final long[] histogram;
+
+        /**
+         * Creates a new snapshot.
+         * @param method
+         * @param target
+         * @param callCount
+         * @param failureCount
+         * @param totalNanos
+         * @param maxNanos
+         * @param histogram
+         */
+        private ListenerSnapshot(Method method, String target, long callCount, long failureCount, long totalNanos,
+                long maxNanos, long[] histogram) {
+            this.method = method;
+            this.target = target;
+            this.callCount = callCount;
+            this.failureCount = failureCount;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.histogram = histogram;
+        }
+
+        /**
+         * Gets the listener method.
+         * @return the method
+         */
+        public Method getMethod() {
+            return method;
+        }
+
+        /**
+         * Gets the listener target name: its class and identity hash code.
+         * @return the target name
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * Gets the number of calls.
+         * @return the call count
+         */
+        public long getCallCount() {
+            return callCount;
+        }
+
+        /**
+         * Gets the number of failed calls.
+         * @return the failure count
+         */
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Gets the total call time.
+         * @return the total time, in ns
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * Gets the longest call time.
+         * @return the longest time, in ns
+         */
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        /**
+         * Gets the latency histogram: bucket i counts calls of [2^i, 2^(i+1)) nanoseconds.
+         * @return a copy of the histogram
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        /**
+         * Gets an upper bound of a latency percentile.
+         * @param percent the percentile, in ]0, 100]
+         * @return the bucket upper bound in nanoseconds, 0 without call
+         */
+        public long getPercentileNanos(double percent) {
+            final long rank = (long) Math.ceil(callCount * percent / 100.);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return method.getDeclaringClass().getName() + "." + method.getName() + " of " + target
+                    + ": calls=" + callCount + ", failures=" + failureCount
+                    + ", mean=" + (callCount == 0 ? 0 : totalNanos / callCount) + "ns"
+                    + ", p99<=" + getPercentileNanos(99) + "ns, max=" + maxNanos + "ns";
+        }
+    }
+}
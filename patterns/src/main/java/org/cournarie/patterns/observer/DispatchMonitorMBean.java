@@ -0,0 +1,63 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * JMX view of a {@link DispatchMonitor}.
+ */
+public interface DispatchMonitorMBean {
+
+    /**
+     * Gets the number of events fired.
+     * @return the event count
+     */
+    long getEventCount();
+
+    /**
+     * Gets the number of listener calls.
+     * @return the call count
+     */
+    long getCallCount();
+
+    /**
+     * Gets the number of listener calls that failed.
+     * @return the failure count
+     */
+    long getFailureCount();
+
+    /**
+     * Gets the number of listener calls slower than the threshold.
+     * @return the slow call count
+     */
+    long getSlowCount();
+
+    /**
+     * Gets the slow listener threshold.
+     * @return the threshold in microseconds
+     */
+    long getSlowThresholdMicros();
+
+    /**
+     * Sets the slow listener threshold.
+     * @param micros the threshold in microseconds
+     */
+    void setSlowThresholdMicros(long micros);
+
+    /**
+     * Gets the event count per event type, one "type=count" line per type.
+     * @return the event counts
+     */
+    String[] getEventCounts();
+
+    /**
+     * Gets the statistics per listener method, one line per method.
+     * @return the listener statistics
+     */
+    String[] getListenerStatistics();
+
+    /**
+     * Resets all counters.
+     */
+    void reset();
+}
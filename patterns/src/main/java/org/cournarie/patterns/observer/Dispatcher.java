@@ -0,0 +1,71 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.List;
+
+/**
+ * The handler calls of a listener class, generated at build time by the patterns processor.
+ * <p>
+ * A dispatcher is named after its listener class with the {@link #SUFFIX} suffix, in the same
+ * package. When one is found, {@link EventListeners#register(Object)} calls the handlers
+ * through it, with a switch over the handler index, instead of scanning and unreflecting the
+ * {@link Subscribe} methods.
+ * @param <T> the listener type
+ */
+public interface Dispatcher<T> {
+
+    /** Suffix of a dispatcher class name. */
+    String SUFFIX = "$$Dispatcher";
+
+    /**
+     * Gets the number of handlers.
+     * @return the handler count
+     */
+    int getHandlerCount();
+
+    /**
+     * Gets the class declaring a handler.
+     * @param handler the handler index
+     * @return the declaring class
+     */
+    Class<?> getDeclaringClass(int handler);
+
+    /**
+     * Gets the method name of a handler.
+     * @param handler the handler index
+     * @return the method name
+     */
+    String getName(int handler);
+
+    /**
+     * Gets the event type of a handler.
+     * @param handler the handler index
+     * @return the event type, the list element type of a batch handler
+     */
+    Class<? extends EventObject> getEventType(int handler);
+
+    /**
+     * Checks a handler takes a list of events.
+     * @param handler the handler index
+     * @return true for a batch handler
+     */
+    boolean isBatch(int handler);
+
+    /**
+     * Calls a single event handler.
+     * @param listener the listener
+     * @param handler the handler index
+     * @param event
+     */
+    void dispatch(T listener, int handler, EventObject<?> event);
+
+    /**
+     * Calls a batch handler.
+     * @param listener the listener
+     * @param handler the handler index
+     * @param events
+     */
+    void dispatchAll(T listener, int handler, List<? extends EventObject<?>> events);
+}
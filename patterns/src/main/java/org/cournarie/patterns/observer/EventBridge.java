@@ -0,0 +1,636 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * A bridge sharing events with other processes over sockets.
+ * <p>
+ * Local events of the exported types are sent to the connected peers, events received
+ * from peers are fired on the local listeners. A peer only gets the events of the types it
+ * imports: importing a type sends a subscription to the peers, so unwanted events never
+ * cross the wire. Received events are marked and not forwarded again by their bridge,
+ * whatever the thread the local listeners fire them on.
+ * <p>
+ * All the sockets are non-blocking and served by a single thread. Each message is a frame
+ * of its length, a kind byte and its payload, events being encoded by an
+ * {@link EventCodec}. Frames are appended to a direct buffer per peer, written out by the
+ * bridge thread: the frames queued meanwhile go out in a single write, without copy to a
+ * temporary native buffer. The buffer of a slow peer grows up to a limit, then the
+ * {@link OverflowPolicy} tells what happens to the events sent to it.
+ */
+public class EventBridge implements AutoCloseable {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(EventBridge.class);
+    /** An event frame. */
+    private static final byte EVENT = 0;
+    /** A subscription frame. */
+    private static final byte SUBSCRIBE = 1;
+    /** An unsubscription frame. */
+    private static final byte UNSUBSCRIBE = 2;
+    /** The initial peer buffer size. */
+    private static final int BUFFER = 64 * 1024;
+    /** The largest frame accepted. */
+    private static final int MAX_FRAME = 16 * 1024 * 1024;
+    /** The default peer buffer limit. */
+    private static final int MAX_BUFFER = 4 * MAX_FRAME;
+    /** Bridge thread counter. */
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    /** The forward method of an exporter. */
+    private static final Method FORWARD;
+
+    static {
+        try {
+            FORWARD = EventBridge.class.getDeclaredMethod("forward", EventObject.class);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** The local listeners. */
+    private final EventListeners local;
+    /** The event codec. */
+    private final EventCodec codec;
+    /** The peer buffer limit, in bytes. */
+    private final int bufferLimit;
+    /** What to do with an event for a peer whose buffer is full. */
+    private final OverflowPolicy overflow;
+    /** The socket selector. */
+    private final Selector selector;
+    /** The bridge thread. */
+    private final Thread thread;
+    /** Tasks to run on the bridge thread. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** The connected peers. */
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    /** Imported type names, with their import count, guarded by importLock. */
+    private final ConcurrentMap<String, Integer> imported = new ConcurrentHashMap<>();
+    /** Orders the import count changes with their subscription frames. */
+    private final Object importLock = new Object();
+    /** Sent event count. */
+    private final AtomicLong sent = new AtomicLong();
+    /** Received event count. */
+    private final AtomicLong received = new AtomicLong();
+    /** Dropped event count. */
+    private final AtomicLong dropped = new AtomicLong();
+    /** Whether the bridge is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Creates a new bridge and starts its thread, publishers wait for slow peers.
+     * @param local the local listeners
+     * @param codec the event codec
+     * @throws IOException if no selector can be opened
+     */
+    public EventBridge(EventListeners local, EventCodec codec) throws IOException {
+        this(local, codec, MAX_BUFFER, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Creates a new bridge and starts its thread.
+     * <p>
+     * With {@link OverflowPolicy#BLOCK}, an event sent from the bridge thread, by a listener
+     * of a received event, fails rather than blocks.
+     * @param local the local listeners
+     * @param codec the event codec
+     * @param bufferLimit the most bytes queued for a peer
+     * @param overflow what to do with an event for a peer whose buffer is full, queued frames
+     * are never dropped
+     * @throws IOException if no selector can be opened
+     */
+    public EventBridge(EventListeners local, EventCodec codec, int bufferLimit, OverflowPolicy overflow)
+            throws IOException {
+        if (bufferLimit < BUFFER) {
+            throw new IllegalArgumentException("Buffer limit below " + BUFFER + ": " + bufferLimit);
+        }
+        if (overflow == OverflowPolicy.DROP_OLDEST) {
+            throw new IllegalArgumentException("Queued frames cannot be dropped");
+        }
+        this.local = local;
+        this.codec = codec;
+        this.bufferLimit = bufferLimit;
+        this.overflow = overflow;
+        selector = Selector.open();
+        thread = new Thread(this::serve, "event-bridge-" + COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Accepts peers on an address.
+     * @param address the address, port 0 for any free port
+     * @return the bound address
+     * @throws IOException if the address cannot be bound
+     */
+    public InetSocketAddress listen(InetSocketAddress address) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        execute(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                LOGGER.error("Cannot accept peers on " + address, e);
+            }
+        });
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * Connects to a peer.
+     * @param address the peer address
+     * @throws IOException if the connection fails
+     */
+    public void connect(InetSocketAddress address) throws IOException {
+        final SocketChannel channel = SocketChannel.open(address);
+        execute(() -> attach(channel));
+    }
+
+    /**
+     * Sends the local events of a type to the peers importing it.
+     * @param eventType the event type
+     * @return the registration, close it to stop sending
+     */
+    public Subscription export(Class<? extends EventObject> eventType) {
+        return local.addListener(eventType, this, FORWARD);
+    }
+
+    /**
+     * Fires locally the events of a type sent by the peers exporting it.
+     * @param eventType the event type
+     * @return the registration, close it to stop importing
+     */
+    public Subscription importEvents(Class<? extends EventObject> eventType) {
+        final String name = eventType.getName();
+        synchronized (importLock) {
+            if (imported.merge(name, 1, Integer::sum) == 1) {
+                peers.forEach(peer -> peer.send(SUBSCRIBE, name.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return new ImportSubscription(name);
+    }
+
+    /**
+     * Checks a peer imports a type.
+     * @param eventType the event type
+     * @return true if a local event of this type would be sent
+     */
+    public boolean isWanted(Class<?> eventType) {
+        for (Peer peer : peers) {
+            if (peer.wants(eventType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the number of sent events, once per peer.
+     * @return the sent count
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * Gets the number of received events.
+     * @return the received count
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * Gets the number of events dropped for full peer buffers, once per peer.
+     * @return the dropped count
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Closes the sockets and stops the bridge thread; exports must be closed apart.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends a local event to the peers importing its type.
+     * @param event
+     */
+    void forward(EventObject<?> event) {
+        if (event.receivedBy == this) {
+            return;
+        }
+        byte[] data = null;
+        RuntimeException failure = null;
+        for (Peer peer : peers) {
+            if (peer.wants(event.getClass())) {
+                if (data == null) {
+                    data = codec.encode(event);
+                }
+                try {
+                    if (peer.send(EVENT, data)) {
+                        sent.incrementAndGet();
+                    } else {
+                        dropped.incrementAndGet();
+                    }
+                } catch (IllegalStateException ex) {
+                    // the other peers still get it
+                    dropped.incrementAndGet();
+                    failure = failure == null ? ex : failure;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs a task on the bridge thread.
+     * @param task
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Serves the sockets, on the bridge thread.
+     */
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    ready(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            LOGGER.error("Event bridge stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close selector", e);
+            }
+        }
+    }
+
+    /**
+     * Handles a ready socket.
+     * @param key
+     */
+    private void ready(SelectionKey key) {
+        try {
+            if (key.isAcceptable()) {
+                final SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                if (channel != null) {
+                    attach(channel);
+                }
+                return;
+            }
+            final Peer peer = (Peer) key.attachment();
+            if (key.isReadable() && !peer.read()) {
+                LOGGER.info("Peer closed " + peer.channel);
+                closeQuietly(key);
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                peer.write();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Peer dropped", e);
+            closeQuietly(key);
+        }
+    }
+
+    /**
+     * Serves a new peer connection, on the bridge thread.
+     * @param channel
+     */
+    private void attach(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            final Peer peer = new Peer(channel);
+            peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+            synchronized (importLock) {
+                peers.add(peer);
+                for (String name : imported.keySet()) {
+                    peer.send(SUBSCRIBE, name.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Cannot serve peer", e);
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Cannot close peer", ex);
+            }
+        }
+    }
+
+    /**
+     * Closes a socket, and forgets its peer.
+     * @param key
+     */
+    private void closeQuietly(SelectionKey key) {
+        if (key.attachment() != null) {
+            peers.remove(key.attachment());
+            ((Peer) key.attachment()).closed();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot close socket", e);
+        }
+    }
+
+    /**
+     * A connected peer.
+     */
+    private final class Peer {
+
+        /** The peer socket. */
+        private final SocketChannel channel;
+        /** Type names imported by the peer. */
+        private final Set<String> wanted = ConcurrentHashMap.newKeySet();
+        /** Received bytes, in write mode, on the bridge thread. */
+        private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER);
+        /** Frames to send, in write mode, guarded by this. */
+        private ByteBuffer out = ByteBuffer.allocateDirect(BUFFER);
+        /** Whether a write is requested, guarded by this. */
+        private boolean writing;
+        /** Whether the socket is closed, guarded by this. */
+        private boolean closed;
+        /** The selection key. */
+        private SelectionKey key;
+
+        /**
+         * Creates a new peer.
+         * @param channel
+         */
+        Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Checks the peer imports a type, or one of its super classes.
+         * @param type
+         * @return true if imported
+         */
+        boolean wants(Class<?> type) {
+            if (wanted.isEmpty()) {
+                return false;
+            }
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                if (wanted.contains(c.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Queues a frame, then requests its write.
+         * <p>
+         * Event frames are queued within the buffer limit, as the overflow policy tells;
+         * subscription frames always are.
+         * @param kind the frame kind
+         * @param payload
+         * @return false if the frame is dropped
+         * @throws IllegalStateException if the frame is larger than a peer accepts, or if the
+         * buffer is full and the policy fails
+         */
+        boolean send(byte kind, byte[] payload) {
+            if (1 + payload.length > MAX_FRAME) {
+                // the peer would drop the connection
+                throw new IllegalStateException("Frame of " + (1 + payload.length) + " bytes over the frame limit "
+                        + MAX_FRAME);
+            }
+            synchronized (this) {
+                final int size = Integer.BYTES + 1 + payload.length;
+                if (kind == EVENT && out.position() + size > bufferLimit && !room(size)) {
+                    return false;
+                }
+                if (closed) {
+                    return false;
+                }
+                if (out.remaining() < size) {
+                    final ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(
+                            Math.min(out.capacity() * 2, bufferLimit), out.position() + size));
+                    ((Buffer) out).flip();
+                    larger.put(out);
+                    out = larger;
+                }
+                out.putInt(1 + payload.length).put(kind).put(payload);
+                if (writing) {
+                    return true;
+                }
+                writing = true;
+            }
+            execute(() -> {
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * Waits for room for a frame in the full buffer, as the overflow policy tells, must
+         * hold lock.
+         * @param size the frame size
+         * @return false if the frame is dropped
+         * @throws IllegalStateException if the policy fails
+         */
+        private boolean room(int size) {
+            if (size > bufferLimit) {
+                throw new IllegalStateException("Frame of " + size + " bytes over the buffer limit " + bufferLimit);
+            }
+            if (overflow == OverflowPolicy.DROP_NEWEST) {
+                return false;
+            }
+            if (overflow == OverflowPolicy.FAIL || Thread.currentThread() == thread) {
+                throw new IllegalStateException("Peer buffer full, limit " + bufferLimit + ": " + channel);
+            }
+            while (out.position() + size > bufferLimit && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Marks the socket closed, waiting publishers give up.
+         */
+        synchronized void closed() {
+            closed = true;
+            notifyAll();
+        }
+
+        /**
+         * Writes the queued frames, on the bridge thread.
+         * @throws IOException
+         */
+        synchronized void write() throws IOException {
+            ((Buffer) out).flip();
+            channel.write(out);
+            out.compact();
+            notifyAll();
+            if (out.position() == 0) {
+                writing = false;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Reads and handles the received frames, on the bridge thread.
+         * @return false once the peer closed its socket
+         * @throws IOException
+         */
+        boolean read() throws IOException {
+            if (channel.read(in) < 0) {
+                return false;
+            }
+            ((Buffer) in).flip();
+            while (in.remaining() >= Integer.BYTES) {
+                final int length = in.getInt(in.position());
+                if (length < 1 || length > MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (in.remaining() < Integer.BYTES + length) {
+                    if (in.capacity() < Integer.BYTES + length) {
+                        final ByteBuffer larger = ByteBuffer.allocateDirect(Integer.BYTES + length);
+                        larger.put(in);
+                        in = larger;
+                        return true;
+                    }
+                    break;
+                }
+                in.getInt();
+                final byte kind = in.get();
+                final byte[] payload = new byte[length - 1];
+                in.get(payload);
+                handle(kind, payload);
+            }
+            in.compact();
+            return true;
+        }
+
+        /**
+         * Handles a received frame.
+         * @param kind the frame kind
+         * @param payload
+         */
+        private void handle(byte kind, byte[] payload) {
+            switch (kind) {
+                case EVENT:
+                    received.incrementAndGet();
+                    try {
+                        final EventObject<?> event = codec.decode(payload);
+                        event.receivedBy = EventBridge.this;
+                        local.fireEvent(event);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Received event delivery failed", e);
+                    }
+                    break;
+                case SUBSCRIBE:
+                    wanted.add(new String(payload, StandardCharsets.UTF_8));
+                    break;
+                case UNSUBSCRIBE:
+                    wanted.remove(new String(payload, StandardCharsets.UTF_8));
+                    break;
+                default:
+                    LOGGER.warn("Unknown frame kind " + kind);
+            }
+        }
+    }
+
+    /**
+     * The registration of an imported type.
+     */
+    private final class ImportSubscription implements Subscription {
+
+        /** The imported type name. */
+        private final String name;
+        /** Whether still active. */
+        private volatile boolean active = true;
+
+        /**
+         * Creates a new subscription.
+         * @param name
+         */
+        ImportSubscription(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!active) {
+                return;
+            }
+            active = false;
+            synchronized (importLock) {
+                if (imported.merge(name, -1, (a, b) -> a + b == 0 ? null : a + b) == null) {
+                    peers.forEach(peer -> peer.send(UNSUBSCRIBE, name.getBytes(StandardCharsets.UTF_8)));
+                }
+            }
+        }
+
+        @Override
+        public boolean isActive() {
+            return active;
+        }
+    }
+}
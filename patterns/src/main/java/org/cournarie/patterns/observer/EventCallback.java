@@ -3,20 +3,52 @@
  */
 package org.cournarie.patterns.observer;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An event listener callback.
+ * <p>
+ * The callback method is turned into a method handle once, at registration, so sending an
+ * event is a direct call the JIT can inline instead of a reflective invocation.
  */
 class EventCallback {
 
+    /** Callback counter. */
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /** The callback identifier, boxed once for the maps keyed by callback. */
+    final Long id = IDS.incrementAndGet();
     /** The event type expected by this callback. */
     private final Class<? extends EventObject> eventType;
-    /** The target object to call. */
+    /** The target object to call, or its {@link WeakTarget}. */
     private final Object target;
-    /** The callback method. */
-    private final Method callback;
+    /** Whether the target is weakly referenced. */
+    private final boolean weak;
+    /** The callback handler, with its method. */
+    private final Handler handler;
+    /** Whether the callback method takes a list of events. */
+    private final boolean batch;
+    /** The type of the target, null for a static method. */
+    private final Class<?> targetType;
+    /** The type of the method argument. */
+    private final Class<?> argumentType;
+    /** The callback invoker, null if the method cannot be called. */
+    private final MethodHandle invoker;
+    /** Why the method cannot be called, if so. */
+    private final Exception unusable;
+    /** The event source filter, null for all sources. */
+    private final Object source;
+    /** How the source filter matches, null for all sources. */
+    private final SourceMatch sourceMatch;
+    /** Whether the callback was unsubscribed. */
+    private volatile boolean cancelled;
 
     /**
      * Creates a new event callback.
@@ -25,25 +57,223 @@ class EventCallback {
      * @param method
      */
     public EventCallback(Class<? extends EventObject> eventType, Object object, Method method) {
-        this.eventType = eventType;
-        target = object;
-        callback = method;
+        this(eventType, object, method, false);
+    }
+
+    /**
+     * Creates a new event callback.
+     * @param eventType
+     * @param object
+     * @param method
+     * @param batch true if the method takes a list of events
+     */
+    public EventCallback(Class<? extends EventObject> eventType, Object object, Method method, boolean batch) {
+        this(Handler.of(eventType, method, batch), object);
+    }
+
+    /**
+     * Creates a new event callback.
+     * @param handler the handler method
+     * @param object the target
+     */
+    EventCallback(Handler handler, Object object) {
+        this(handler, object, null);
+    }
+
+    /**
+     * Creates a new event callback.
+     * @param handler the handler method
+     * @param object the target
+     * @param queue the queue of collected targets, null to keep a strong reference
+     */
+    EventCallback(Handler handler, Object object, ReferenceQueue<Object> queue) {
+        this(handler, object, queue, null, null);
+    }
+
+    /**
+     * Creates a new event callback, only for the events of a source.
+     * @param handler the handler method
+     * @param object the target
+     * @param queue the queue of collected targets, null to keep a strong reference
+     * @param source the event source, null for all sources
+     * @param sourceMatch how the source matches, null for all sources
+     */
+    EventCallback(Handler handler, Object object, ReferenceQueue<Object> queue, Object source,
+            SourceMatch sourceMatch) {
+        if ((source == null) != (sourceMatch == null)) {
+            throw new IllegalArgumentException("Source filter needs both a source and a match");
+        }
+        this.source = source;
+        this.sourceMatch = sourceMatch;
+        eventType = handler.eventType;
+        weak = queue != null;
+        target = weak ? new WeakTarget(object, queue, this) : object;
+        this.handler = handler;
+        batch = handler.batch;
+        targetType = handler.targetType;
+        argumentType = handler.argumentType;
+        invoker = handler.invoker;
+        unusable = handler.unusable;
+    }
+
+    /**
+     * Unsubscribes this callback: no event is sent to it anymore.
+     * @return false if it was already cancelled
+     */
+    boolean cancel() {
+        final boolean was = cancelled;
+        cancelled = true;
+        return !was;
+    }
+
+    /**
+     * Checks this callback was unsubscribed.
+     * @return true if cancelled
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Checks this callback supports an event class.
+     * @param eventClass the concrete event class
+     * @return true if events of this class are sent to this callback
+     */
+    public boolean accepts(Class<?> eventClass) {
+        return eventType.isAssignableFrom(eventClass);
+    }
+
+    /**
+     * Checks the source filter accepts an event source.
+     * @param eventSource the event source
+     * @return true if unfiltered or matching
+     */
+    boolean acceptsSource(Object eventSource) {
+        if (source == null) {
+            return true;
+        }
+        return sourceMatch == SourceMatch.IDENTITY ? source == eventSource : source.equals(eventSource);
+    }
+
+    /**
+     * Gets the event source filter.
+     * @return the source, null for all sources
+     */
+    Object source() {
+        return source;
+    }
+
+    /**
+     * Gets how the source filter matches.
+     * @return the match, null for all sources
+     */
+    SourceMatch sourceMatch() {
+        return sourceMatch;
     }
 
     /**
      * Sends the event.
+     * <p>
+     * The event must be {@link #accepts(Class) accepted} by this callback. As with reflection,
+     * a failure of the callback itself is reported as an {@link InvocationTargetException}
+     * cause, a target or event of the wrong type as an {@link IllegalArgumentException} one.
+     * Nothing is sent to a cancelled callback.
      * @param event
      * @throws MethodException
      */
     public void sendEvent(EventObject<?> event) {
-        // Only send events supported by the method
-        if (eventType.isAssignableFrom(event.getClass())) {
-            try {
-                callback.invoke(target, new Object[]{event});
-            } catch (InvocationTargetException | IllegalAccessException | IllegalArgumentException ex) {
-                throw new MethodException("sendEvent failure for '" + event + "'", ex);
+        if (cancelled) {
+            return;
+        }
+        if (batch) {
+            sendEvents(Collections.singletonList(event));
+            return;
+        }
+        if (invoker == null) {
+            throw new MethodException("sendEvent failure for '" + event + "'", unusable);
+        }
+        final Object t = target();
+        if (t == null && weak) {
+            return;
+        }
+        final IllegalArgumentException mismatch = mismatch(t, event);
+        if (mismatch != null) {
+            throw new MethodException("sendEvent failure for '" + event + "'", mismatch);
+        }
+        try {
+            invoker.invokeExact(t, event);
+        } catch (Throwable ex) {
+            throw new MethodException("sendEvent failure for '" + event + "'", new InvocationTargetException(ex));
+        }
+    }
+
+    /**
+     * Sends events, in a single call for a batch callback.
+     * <p>
+     * The events must be {@link #accepts(Class) accepted} by this callback; failures are
+     * reported as by {@link #sendEvent(EventObject)}.
+     * @param events
+     * @throws MethodException
+     */
+    public void sendEvents(List<? extends EventObject<?>> events) {
+        if (cancelled) {
+            return;
+        }
+        if (!batch) {
+            for (EventObject<?> event : events) {
+                sendEvent(event);
             }
+            return;
+        }
+        if (invoker == null) {
+            throw new MethodException("sendEvents failure for '" + events + "'", unusable);
+        }
+        final Object t = target();
+        if (t == null && weak) {
+            return;
+        }
+        final IllegalArgumentException mismatch = mismatch(t, events);
+        if (mismatch != null) {
+            throw new MethodException("sendEvents failure for '" + events + "'", mismatch);
         }
+        try {
+            invoker.invokeExact(t, (List) events);
+        } catch (Throwable ex) {
+            throw new MethodException("sendEvents failure for '" + events + "'", new InvocationTargetException(ex));
+        }
+    }
+
+    /**
+     * Checks the arguments of a call, as reflection does, so that the casts of the invoker
+     * cannot fail: a listener exception is never mistaken for an argument error.
+     * @param t the target
+     * @param argument the event or events
+     * @return the argument error, null if none
+     */
+    private IllegalArgumentException mismatch(Object t, Object argument) {
+        if (targetType != null && !targetType.isInstance(t)) {
+            return new IllegalArgumentException("object is not an instance of declaring class " + targetType.getName());
+        }
+        if (!argumentType.isInstance(argument)) {
+            return new IllegalArgumentException("argument type mismatch, " + argumentType.getName() + " expected");
+        }
+        return null;
+    }
+
+    /**
+     * Gets the callback method.
+     * @return the method
+     */
+    Method getMethod() {
+        return handler.method();
+    }
+
+    /**
+     * Checks this callback takes events by batch.
+     * @return true for a batch callback
+     */
+    public boolean isBatch() {
+        return batch;
     }
 
     /**
@@ -55,15 +285,63 @@ class EventCallback {
      * @return
      */
     public boolean match(Class<?> eventType, Object target, Method method) {
-        return (target == this.target)
+        return (target == target())
                 && eventType.equals(this.eventType)
-                && method.equals(this.callback);
+                && method.equals(handler.method());
+    }
+
+    /**
+     * Names the target, as {@link Object#toString()} does by default.
+     * @return the target class and identity hash code
+     */
+    String targetName() {
+        final Object t = target();
+        return t == null ? "collected" : t.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(t));
     }
 
     /**
-     * The exception thrown is the event call produce an error.
+     * Gets the target.
+     * @return the target, null if it was weakly referenced and collected
      */
-    public class MethodException extends RuntimeException {
+    private Object target() {
+        return weak ? ((WeakTarget) target).get() : target;
+    }
+
+    /**
+     * A weakly referenced target, enqueued with its callback once collected.
+     */
+    static final class WeakTarget extends WeakReference<Object> {
+
+        /** The callback of this target. */
+        private final EventCallback callback;
+
+        /**
+         * Creates a new weak target.
+         * @param target
+         * @param queue
+         * @param callback
+         */
+        private WeakTarget(Object target, ReferenceQueue<Object> queue, EventCallback callback) {
+            super(target, queue);
+            this.callback = callback;
+        }
+
+        /**
+         * Gets the callback of the collected target.
+         * @return the callback
+         */
+        EventCallback callback() {
+            return callback;
+        }
+    }
+
+    /**
+     * The exception thrown if the event call produces an error.
+     */
+    public static class MethodException extends RuntimeException {
+
+        /** Serial. */
+        private static final long serialVersionUID = 1L;
 
         /**
          * Constructor.
@@ -0,0 +1,24 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * Turns events into bytes and back, for the {@link EventJournal}.
+ */
+public interface EventCodec {
+
+    /**
+     * Encodes an event.
+     * @param event the event
+     * @return the event bytes, not empty
+     */
+    byte[] encode(EventObject<?> event);
+
+    /**
+     * Decodes an event.
+     * @param data the event bytes, as encoded
+     * @return the event
+     */
+    EventObject<?> decode(byte[] data);
+}
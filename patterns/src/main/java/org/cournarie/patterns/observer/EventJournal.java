@@ -0,0 +1,471 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only journal of events, in memory-mapped segment files.
+ * <p>
+ * Each event gets the next sequence number and is written through an {@link EventCodec} as
+ * a record prefixed by its length and checksum. The length is written last, and the mapped
+ * pages may reach the disk in any order, so a reopened segment is indexed up to the first
+ * record whose checksum does not match: a record torn by a crash is never read back. A
+ * segment file is named after its first sequence and rolls over once full; each
+ * segment keeps the offset of its records, so a replay starts at any sequence without
+ * scanning. The segments are reopened, and their index rebuilt, when the journal is
+ * created again on the same directory.
+ * <p>
+ * A replay fires the events appended before it starts; if the journal records the replay
+ * listeners, the replayed events are appended again.
+ * <p>
+ * Old segments are dropped by retention, by total size or age, when a segment rolls or on
+ * {@link #compact()}. The current segment is never dropped.
+ * <p>
+ * Mapped files are only released by the garbage collector: dropped segments are deleted
+ * at once, which some systems refuse while they are still mapped.
+ */
+public class EventJournal implements AutoCloseable {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(EventJournal.class);
+    /** Segment file suffix. */
+    private static final String SUFFIX = ".journal";
+    /** The record header size, length then checksum. */
+    private static final int HEADER = 2 * Integer.BYTES;
+    /** Default appends per forced write in group mode. */
+    private static final int DEFAULT_GROUP = 64;
+    /** The journal method of a recorder. */
+    private static final Method APPEND;
+
+    static {
+        try {
+            APPEND = EventJournal.class.getDeclaredMethod("record", EventObject.class);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** The segments directory. */
+    private final Path directory;
+    /** The event codec. */
+    private final EventCodec codec;
+    /** The segment file size. */
+    private final int segmentSize;
+    /** When writes are forced. */
+    private final SyncPolicy sync;
+    /** Segments by first sequence, guarded by this. */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /** The segment appended to, guarded by this. */
+    private Segment current;
+    /** The sequence of the next event. */
+    private volatile long nextSequence;
+    /** Appends since the last forced write, guarded by this. */
+    private int unforced;
+    /** Appends per forced write in group mode, guarded by this. */
+    private int group = DEFAULT_GROUP;
+    /** The most bytes kept, guarded by this. */
+    private long maxBytes = Long.MAX_VALUE;
+    /** The oldest segment age kept, in ms, guarded by this. */
+    private long maxAge = Long.MAX_VALUE;
+    /** Whether the journal is closed, guarded by this. */
+    private boolean closed;
+
+    /**
+     * Opens a journal, reopening the existing segments of the directory.
+     * @param directory the segments directory, created if missing
+     * @param codec the event codec
+     * @param segmentSize the segment file size
+     * @param sync when writes are forced
+     * @throws IOException if the segments cannot be opened
+     */
+    public EventJournal(Path directory, EventCodec codec, int segmentSize, SyncPolicy sync) throws IOException {
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        for (Path file : files) {
+            final String name = file.getFileName().toString();
+            final long first = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            final Segment segment = Segment.open(file, first);
+            segments.put(segment.first, segment);
+        }
+        if (segments.isEmpty()) {
+            current = Segment.create(directory, 0, segmentSize);
+            segments.put(0L, current);
+        } else {
+            current = segments.lastEntry().getValue();
+        }
+        nextSequence = current.first + current.count;
+    }
+
+    /**
+     * Sets the appends per forced write, in {@link SyncPolicy#GROUP} mode.
+     * @param appends the group size
+     */
+    public synchronized void setGroupCommit(int appends) {
+        if (appends < 1) {
+            throw new IllegalArgumentException("Group size must be positive: " + appends);
+        }
+        group = appends;
+    }
+
+    /**
+     * Sets the retention, applied when a segment rolls and on {@link #compact()}.
+     * @param bytes the most bytes kept, Long.MAX_VALUE for no limit
+     * @param age the oldest segment age kept, Long.MAX_VALUE for no limit
+     * @param unit the age unit
+     */
+    public synchronized void setRetention(long bytes, long age, TimeUnit unit) {
+        maxBytes = bytes;
+        maxAge = age == Long.MAX_VALUE ? Long.MAX_VALUE : unit.toMillis(age);
+    }
+
+    /**
+     * Records the events of a type fired on some listeners.
+     * @param listeners the listeners to record from
+     * @param eventType the event type
+     * @return the registration, close it to stop recording
+     */
+    public Subscription record(EventListeners listeners, Class<? extends EventObject> eventType) {
+        return listeners.addListener(eventType, this, APPEND);
+    }
+
+    /**
+     * Appends an event.
+     * @param event
+     * @return the event sequence
+     * @throws IllegalArgumentException if the encoded event does not fit in a segment
+     * @throws IllegalStateException if the journal is closed
+     * @throws UncheckedIOException if a new segment cannot be created
+     */
+    public long append(EventObject<?> event) {
+        final byte[] data = codec.encode(event);
+        if (data.length == 0 || data.length > segmentSize - HEADER) {
+            throw new IllegalArgumentException("Encoded event size " + data.length + " out of segment bounds");
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Journal closed");
+            }
+            if (!current.fits(data.length)) {
+                roll();
+            }
+            current.append(data);
+            if (sync == SyncPolicy.ALWAYS || sync == SyncPolicy.GROUP && ++unforced >= group) {
+                current.buffer.force();
+                unforced = 0;
+            }
+            return nextSequence++;
+        }
+    }
+
+    /**
+     * Fires the journaled events on listeners, from a sequence to the last one appended
+     * before the call.
+     * @param fromSequence the first sequence, the first kept one if older
+     * @param listeners the listeners
+     * @return the sequence following the last fired event
+     */
+    public long replay(long fromSequence, EventListeners listeners) {
+        // the events appended meanwhile, maybe by replay itself, are not replayed
+        final long end = nextSequence;
+        long sequence = fromSequence;
+        byte[] data;
+        while (sequence < end && (data = read(sequence)) != null) {
+            if (data.length == 0) {
+                // dropped by retention meanwhile
+                sequence = getFirstSequence();
+                continue;
+            }
+            listeners.fireEvent(codec.decode(data));
+            sequence += 1;
+        }
+        return Math.max(sequence, fromSequence);
+    }
+
+    /**
+     * Gets the first kept sequence.
+     * @return the oldest sequence that can be replayed
+     */
+    public synchronized long getFirstSequence() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Gets the sequence of the next appended event.
+     * @return the next sequence
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Gets the number of segment files.
+     * @return the segment count
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Forces the appended events to the disk.
+     */
+    public synchronized void flush() {
+        if (!closed) {
+            current.buffer.force();
+            unforced = 0;
+        }
+    }
+
+    /**
+     * Drops the old segments beyond the retention.
+     */
+    public synchronized void compact() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.buffer.capacity();
+        }
+        final long oldest = System.currentTimeMillis() - maxAge;
+        while (segments.size() > 1) {
+            final Segment first = segments.firstEntry().getValue();
+            if (bytes <= maxBytes && (maxAge == Long.MAX_VALUE || first.lastAppend >= oldest)) {
+                break;
+            }
+            segments.pollFirstEntry();
+            bytes -= first.buffer.capacity();
+            try {
+                Files.deleteIfExists(first.path);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot delete journal segment " + first.path, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            current.buffer.force();
+            closed = true;
+        }
+    }
+
+    /**
+     * Copies the bytes of an event.
+     * @param sequence the event sequence
+     * @return the event bytes, empty if dropped, null past the last event
+     */
+    private synchronized byte[] read(long sequence) {
+        if (sequence >= nextSequence || closed) {
+            return null;
+        }
+        final Map.Entry<Long, Segment> entry = segments.floorEntry(sequence);
+        if (entry == null) {
+            return new byte[0];
+        }
+        return entry.getValue().read((int) (sequence - entry.getKey()));
+    }
+
+    /**
+     * Starts a new segment, must hold the lock.
+     */
+    private void roll() {
+        current.buffer.force();
+        unforced = 0;
+        try {
+            current = Segment.create(directory, nextSequence, segmentSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create journal segment", e);
+        }
+        segments.put(current.first, current);
+        compact();
+    }
+
+    /**
+     * Appends an event, as a listener.
+     * @param event
+     */
+    void record(EventObject<?> event) {
+        append(event);
+    }
+
+    /**
+     * A segment file.
+     */
+    private static final class Segment {
+
+        /** The segment file. */
+        final Path path;
+        /** The sequence of the first event. */
+        final long first;
+        /** The mapped file. */
+        final MappedByteBuffer buffer;
+        /** The offset of each event record. */
+        int[] offsets = new int[64];
+        /** The number of events. */
+        int count;
+        /** The end of the last record. */
+        int position;
+        /** The last append time, in ms. */
+        long lastAppend;
+
+        /**
+         * Creates a segment.
+         * @param path
+         * @param first
+         * @param buffer
+         */
+        private Segment(Path path, long first, MappedByteBuffer buffer) {
+            this.path = path;
+            this.first = first;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Creates a new segment file.
+         * @param directory
+         * @param first the first sequence
+         * @param size the file size
+         * @return the segment
+         * @throws IOException
+         */
+        static Segment create(Path directory, long first, int size) throws IOException {
+            final Path path = directory.resolve(String.format("%020d%s", first, SUFFIX));
+            final Segment segment = new Segment(path, first, map(path, size));
+            segment.lastAppend = System.currentTimeMillis();
+            return segment;
+        }
+
+        /**
+         * Opens a segment file, indexing its records.
+         * @param path
+         * @param first the first sequence
+         * @return the segment
+         * @throws IOException
+         */
+        static Segment open(Path path, long first) throws IOException {
+            final Segment segment = new Segment(path, first, map(path, (int) Files.size(path)));
+            segment.lastAppend = Files.getLastModifiedTime(path).toMillis();
+            final MappedByteBuffer buffer = segment.buffer;
+            while (buffer.capacity() - segment.position >= HEADER) {
+                final int length = buffer.getInt(segment.position);
+                if (length <= 0 || length > buffer.capacity() - segment.position - HEADER) {
+                    break;
+                }
+                if (buffer.getInt(segment.position + Integer.BYTES) != checksum(buffer, segment.position, length)) {
+                    LOGGER.warn("Torn journal record at " + path + ":" + segment.position
+                            + ", dropped with the next ones");
+                    break;
+                }
+                segment.index(length);
+            }
+            return segment;
+        }
+
+        /**
+         * Maps a file, created if missing.
+         * @param path
+         * @param size the mapped size
+         * @return the mapped file
+         * @throws IOException
+         */
+        private static MappedByteBuffer map(Path path, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        /**
+         * Computes the checksum of record data.
+         * @param buffer the segment
+         * @param offset the record offset
+         * @param length the record data length
+         * @return the checksum
+         */
+        private static int checksum(ByteBuffer buffer, int offset, int length) {
+            final ByteBuffer view = buffer.duplicate();
+            ((Buffer) view).position(offset + HEADER).limit(offset + HEADER + length);
+            final CRC32 crc = new CRC32();
+            crc.update(view);
+            return (int) crc.getValue();
+        }
+
+        /**
+         * Whether a record fits in the segment.
+         * @param length the event bytes length
+         * @return true if it fits
+         */
+        boolean fits(int length) {
+            return buffer.capacity() - position >= HEADER + length;
+        }
+
+        /**
+         * Writes a record, its length last.
+         * @param data the event bytes
+         */
+        void append(byte[] data) {
+            final ByteBuffer view = buffer.duplicate();
+            ((Buffer) view).position(position + HEADER);
+            view.put(data);
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            buffer.putInt(position + Integer.BYTES, (int) crc.getValue());
+            buffer.putInt(position, data.length);
+            index(data.length);
+            lastAppend = System.currentTimeMillis();
+        }
+
+        /**
+         * Reads the bytes of a record.
+         * @param index the record index in this segment
+         * @return the event bytes
+         */
+        byte[] read(int index) {
+            final int offset = offsets[index];
+            final byte[] data = new byte[buffer.getInt(offset)];
+            final ByteBuffer view = buffer.duplicate();
+            ((Buffer) view).position(offset + HEADER);
+            view.get(data);
+            return data;
+        }
+
+        /**
+         * Indexes the record at the current position.
+         * @param length the record data length
+         */
+        private void index(int length) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            position += HEADER + length;
+        }
+    }
+}
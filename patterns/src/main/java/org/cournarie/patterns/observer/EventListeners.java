@@ -3,19 +3,64 @@
  */
 package org.cournarie.patterns.observer;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.reflect.Method;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
 
 /**
  * Event listeners.
+ * <p>
+ * The registered callbacks are kept in an immutable {@link Registry} snapshot: adding or
+ * removing a listener publishes a new registry, firing an event reads the current one
+ * without lock nor allocation. A listener may thus add or remove listeners while being
+ * called, the event being delivered is not affected.
+ * <p>
+ * Each registry caches, per concrete event class, the callbacks accepting it, so firing an
+ * event only walks the matching listeners.
+ * <p>
+ * Closing a {@link Subscription} only flags its callback; flagged callbacks are dropped
+ * when the registry is next rebuilt, at the latest once they are half of it.
+ * <p>
+ * Weak listeners are not kept alive by their registration. Once collected they are not
+ * called anymore; they are purged on the next registration change, not while firing.
+ * <p>
+ * A listener may only want the events of a given source: source filtered listeners are
+ * indexed by source, so an event is only delivered to the unfiltered listeners and to
+ * those of its source: the unfiltered ones first, then those matching the source by
+ * equality, then those matching it by identity.
+ * <p>
+ * In sticky mode, the last event of each event class, or of each class and source, is
+ * kept: a new listener gets the kept events it accepts as soon as it is registered.
+ * <p>
+ * Events may be fired later, through a {@link TimingWheel}: expired events are fired in
+ * batches, from the wheel thread.
+ * <p>
+ * Dispatch is instrumented once a {@link DispatchMonitor} is set.
  * @author eric
  */
 public class EventListeners {
 
-    /** Listener list. */
-    private final List<EventCallback> listeners = new LinkedList<>();
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(EventListeners.class);
+    /** Serializes registry updates. */
+    private final Object lock = new Object();
+    /** Listener snapshot, never modified once published. */
+    private volatile Registry registry = Registry.EMPTY;
+    /** Number of cancelled callbacks in the registry, guarded by lock. */
+    private int cancelled = 0;
+    /** Collected weak listeners. */
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    /** The last events, null unless sticky. */
+    private volatile StickyCache sticky;
+    /** The wheel of scheduled events, null for the shared one. */
+    private volatile TimingWheel timer;
 
     /**
      * Creates a new event listeners.
@@ -29,29 +74,111 @@ public class EventListeners {
      * @param eventType
      * @param object
      * @param method
+     * @return the registration
      */
-    public void addListener(Class<? extends EventObject> eventType, Object object, Method method) {
-        synchronized (listeners) {
-            listeners.add(new EventCallback(eventType, object, method));
-        }
+    public Subscription addListener(Class<? extends EventObject> eventType, Object object, Method method) {
+        return subscribe(new EventCallback(eventType, object, method));
+    }
+
+    /**
+     * Adds a new batch listener.
+     * <p>
+     * The method takes a {@code List} of events: {@link #fireEvents(Collection)} sends it
+     * all the matching events of a batch at once, {@link #fireEvent(EventObject)} a list of
+     * one event.
+     * @param eventType
+     * @param object
+     * @param method
+     * @return the registration
+     */
+    public Subscription addBatchListener(Class<? extends EventObject> eventType, Object object, Method method) {
+        return subscribe(new EventCallback(eventType, object, method, true));
+    }
+
+    /**
+     * Registers the {@link Subscribe} annotated methods of a listener.
+     * <p>
+     * Each method handles the events of its parameter type; the handler methods of a class
+     * are looked up once and cached.
+     * @param listener the listener
+     * @return the registration of all its handler methods
+     * @throws IllegalArgumentException if the listener has no handler, or an invalid one
+     */
+    public Subscription register(Object listener) {
+        return subscribe(callbacks(listener, null));
+    }
+
+    /**
+     * Adds a new listener, only weakly referenced.
+     * @param eventType
+     * @param object
+     * @param method
+     * @return the registration
+     */
+    public Subscription addWeakListener(Class<? extends EventObject> eventType, Object object, Method method) {
+        return subscribe(new EventCallback(Handler.of(eventType, method, false), object, collected));
+    }
+
+    /**
+     * Registers the {@link Subscribe} annotated methods of a listener, only weakly referenced.
+     * @param listener the listener
+     * @return the registration of all its handler methods
+     * @throws IllegalArgumentException if the listener has no handler, or an invalid one
+     * @see #register(Object)
+     */
+    public Subscription registerWeak(Object listener) {
+        return subscribe(callbacks(listener, collected));
+    }
+
+    /**
+     * Adds a new listener, only for the events of a source.
+     * @param eventType
+     * @param source the event source
+     * @param match how the event source matches
+     * @param object
+     * @param method
+     * @return the registration
+     */
+    public Subscription addListener(Class<? extends EventObject> eventType, Object source, SourceMatch match,
+            Object object, Method method) {
+        return subscribe(new EventCallback(Handler.of(eventType, method, false), object, null, source, match));
+    }
+
+    /**
+     * Registers the {@link Subscribe} annotated methods of a listener, only for the events
+     * of a source.
+     * @param listener the listener
+     * @param source the event source
+     * @param match how the event source matches
+     * @return the registration of all its handler methods
+     * @throws IllegalArgumentException if the listener has no handler, or an invalid one
+     * @see #register(Object)
+     */
+    public Subscription register(Object listener, Object source, SourceMatch match) {
+        return subscribe(callbacks(listener, null, source, match));
     }
 
     /**
      * Removes a listener.
+     * <p>
+     * As with {@link Subscription#close()}, its callbacks are cancelled: events already
+     * dispatched to them, queued or in flight, are not delivered.
      * @param eventType
      * @param target
      * @param method
      */
     public void removeListener(Class<?> eventType, Object target, Method method) {
-        synchronized (listeners) {
-            final Iterator<EventCallback> i = listeners.iterator();
-            while (i.hasNext()) {
-                final EventCallback lm = i.next();
-                if (lm.match(eventType, target, method)) {
-                    i.remove();
+        synchronized (lock) {
+            expunge();
+            for (EventCallback callback : registry.callbacks()) {
+                if (callback.match(eventType, target, method)) {
+                    cancel(callback);
                 }
             }
+            registry = registry.remove(eventType, target, method);
+            cancelled = 0;
         }
+        pruned();
     }
 
     /**
@@ -59,12 +186,408 @@ public class EventListeners {
      * @param event
      */
     public void fireEvent(EventObject<?> event) {
-        // protect against concurrent notifications
-        // on event, a remove or add is possible
-        List<EventCallback> callings;
-        synchronized (listeners) {
-            callings = new LinkedList<>(listeners);
+        // on event, a remove or add is possible: it publishes a new registry
+        // and leaves this one untouched
+        final Registry current = registry;
+        keep(event);
+        final EventCallback[] callings = current.dispatch(event.getClass());
+        final DispatchMonitor monitor = current.monitor();
+        if (monitor == null) {
+            for (EventCallback callback : callings) {
+                callback.sendEvent(event);
+            }
+        } else {
+            monitor.fired(event.getClass());
+            for (EventCallback callback : callings) {
+                monitor.send(callback, event);
+            }
+        }
+        if (current.sourced()) {
+            sendSourced(current, SourceMatch.EQUALITY, event);
+            sendSourced(current, SourceMatch.IDENTITY, event);
+        }
+    }
+
+    /**
+     * Fires a pooled event, then releases it.
+     * <p>
+     * The event goes back to its pool once all the listeners have returned, so they must
+     * not keep it.
+     * @param event
+     * @throws UnsupportedOperationException if delivery is deferred
+     */
+    public void fireAndRelease(PooledEvent<?> event) {
+        try {
+            fireEvent(event);
+        } finally {
+            event.release();
+        }
+    }
+
+    /**
+     * Fires a batch of events.
+     * <p>
+     * All the events are delivered to the same listeners, as registered when the call
+     * starts. Listeners get the events one by one, in order; then each batch listener
+     * gets the list of the events it accepts in a single call.
+     * @param events
+     */
+    public void fireEvents(Collection<? extends EventObject<?>> events) {
+        final Registry current = registry;
+        final DispatchMonitor monitor = current.monitor();
+        Map<EventCallback, List<EventObject<?>>> batches = null;
+        for (EventObject<?> event : events) {
+            keep(event);
+            if (monitor != null) {
+                monitor.fired(event.getClass());
+            }
+            for (EventCallback callback : current.dispatch(event)) {
+                if (!callback.isBatch()) {
+                    send(monitor, callback, event);
+                } else {
+                    if (batches == null) {
+                        batches = new LinkedHashMap<>();
+                    }
+                    batches.computeIfAbsent(callback, c -> new ArrayList<>()).add(event);
+                }
+            }
+        }
+        if (batches != null) {
+            batches.forEach((callback, batch) -> sendAll(monitor, callback, batch));
+        }
+    }
+
+    /**
+     * Sends an event to the source filtered callbacks of its source.
+     * @param current the registry
+     * @param match the source match
+     * @param event
+     */
+    private static void sendSourced(Registry current, SourceMatch match, EventObject<?> event) {
+        final Class<?> eventClass = event.getClass();
+        for (EventCallback callback : current.sourced(event.getSource(), match)) {
+            if (callback.accepts(eventClass)) {
+                send(current.monitor(), callback, event);
+            }
+        }
+    }
+
+    /**
+     * Sets the sticky mode.
+     * <p>
+     * The kept events are delivered to the listeners registered later, once; the least
+     * recently used ones, fired or delivered to a new listener, are evicted beyond the
+     * capacity. Pooled events are not kept. An
+     * event fired while a listener registers may reach it twice.
+     * @param capacity the most events kept, 0 to disable and drop the kept events
+     * @param perSource true to keep the last event per class and source, false per class
+     */
+    public void setSticky(int capacity, boolean perSource) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Negative capacity: " + capacity);
+        }
+        sticky = capacity == 0 ? null : new StickyCache(capacity, perSource);
+    }
+
+    /**
+     * Fires an event after a delay.
+     * <p>
+     * Pooled events are not accepted, they could be recycled before the delivery.
+     * @param event
+     * @param delay the delay
+     * @param unit the delay unit
+     * @return the scheduled event, to cancel it
+     * @throws IllegalArgumentException if the event is pooled
+     * @throws IllegalStateException if the timing wheel is closed
+     */
+    public Timeout fireAfter(EventObject<?> event, long delay, TimeUnit unit) {
+        checkDeferrable(event);
+        final TimingWheel wheel = timer;
+        return (wheel == null ? TimingWheel.shared() : wheel).schedule(this, event, unit.toNanos(delay));
+    }
+
+    /**
+     * Fires an event at a given time.
+     * @param event
+     * @param time the time, in ms since the epoch
+     * @return the scheduled event, to cancel it
+     * @throws IllegalArgumentException if the event is pooled
+     * @throws IllegalStateException if the timing wheel is closed
+     */
+    public Timeout fireAt(EventObject<?> event, long time) {
+        return fireAfter(event, time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the wheel of scheduled events, for its own tick resolution.
+     * @param wheel the wheel, null for the shared one with a 1 ms tick
+     */
+    public void setTimingWheel(TimingWheel wheel) {
+        timer = wheel;
+    }
+
+    /**
+     * Sets the dispatch monitor.
+     * @param monitor the monitor, null to disable instrumentation
+     */
+    public void setMonitor(DispatchMonitor monitor) {
+        synchronized (lock) {
+            registry = registry.monitor(monitor);
+        }
+    }
+
+    /**
+     * Gets the dispatch monitor.
+     * @return the monitor, null if disabled
+     */
+    public DispatchMonitor getMonitor() {
+        return registry.monitor();
+    }
+
+    /**
+     * Adds callbacks to the registry.
+     * @param callbacks
+     * @return the callbacks registration
+     */
+    Subscription subscribe(EventCallback... callbacks) {
+        synchronized (lock) {
+            expunge();
+            registry = registry.add(callbacks);
+            cancelled = 0;
+        }
+        final StickyCache cache = sticky;
+        if (cache != null) {
+            for (EventObject<?> event : cache.events()) {
+                boolean used = false;
+                for (EventCallback callback : callbacks) {
+                    if (callback.accepts(event.getClass()) && callback.acceptsSource(event.getSource())) {
+                        deliverSticky(callback, event);
+                        used = true;
+                    }
+                }
+                if (used) {
+                    cache.used(event);
+                }
+            }
+        }
+        return new CallbackSubscription(callbacks);
+    }
+
+    /**
+     * Delivers a kept event to a new callback, failures are logged.
+     * @param callback
+     * @param event
+     */
+    void deliverSticky(EventCallback callback, EventObject<?> event) {
+        try {
+            send(callback, event);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Sticky event delivery failed for " + callback.getMethod(), ex);
+        }
+    }
+
+    /**
+     * Rejects a pooled event, it could be recycled before a deferred delivery.
+     * @param event
+     * @throws IllegalArgumentException if the event is pooled
+     */
+    static void checkDeferrable(EventObject<?> event) {
+        if (event instanceof PooledEvent) {
+            throw new IllegalArgumentException("Pooled events need synchronous delivery: " + event);
+        }
+    }
+
+    /**
+     * Keeps an event, in sticky mode.
+     * @param event
+     */
+    private void keep(EventObject<?> event) {
+        final StickyCache cache = sticky;
+        if (cache != null) {
+            cache.put(event);
+        }
+    }
+
+    /**
+     * Creates the callbacks of the annotated methods of a listener.
+     * @param listener
+     * @param queue the queue of collected targets, null for strong references
+     * @return the callbacks
+     */
+    static EventCallback[] callbacks(Object listener, ReferenceQueue<Object> queue) {
+        return callbacks(listener, queue, null, null);
+    }
+
+    /**
+     * Creates the callbacks of the annotated methods of a listener.
+     * @param listener
+     * @param queue the queue of collected targets, null for strong references
+     * @param source the event source, null for all sources
+     * @param match how the event source matches, null for all sources
+     * @return the callbacks
+     */
+    private static EventCallback[] callbacks(Object listener, ReferenceQueue<Object> queue, Object source,
+            SourceMatch match) {
+        final Handler[] handlers = Handler.annotated(listener.getClass());
+        if (handlers.length == 0) {
+            throw new IllegalArgumentException("No @Subscribe method in " + listener.getClass().getName());
+        }
+        final EventCallback[] callbacks = new EventCallback[handlers.length];
+        for (int i = 0; i < handlers.length; i++) {
+            callbacks[i] = new EventCallback(handlers[i], listener, queue, source, match);
+        }
+        return callbacks;
+    }
+
+    /**
+     * Cancels the callbacks of collected weak listeners, must hold lock.
+     * <p>
+     * They are dropped by the next registry rebuild or compaction.
+     */
+    private void expunge() {
+        Reference<?> ref;
+        while ((ref = collected.poll()) != null) {
+            if (cancel(((EventCallback.WeakTarget) ref).callback())) {
+                cancelled += 1;
+            }
+        }
+    }
+
+    /**
+     * Cancels a callback, and drops its statistics from the monitor.
+     * @param callback
+     * @return false if it was already cancelled
+     */
+    boolean cancel(EventCallback callback) {
+        if (!callback.cancel()) {
+            return false;
+        }
+        final DispatchMonitor monitor = registry.monitor();
+        if (monitor != null) {
+            monitor.removed(callback);
+        }
+        return true;
+    }
+
+    /**
+     * Called once callbacks have been dropped from the registry.
+     */
+    void pruned() {
+        // nothing to release here
+    }
+
+    /**
+     * Gets the current callbacks accepting an event.
+     * @param event the event
+     * @return the matching callbacks, source filtered ones included, must not be modified
+     */
+    EventCallback[] dispatch(EventObject<?> event) {
+        final Registry current = registry;
+        keep(event);
+        if (current.monitor() != null) {
+            current.monitor().fired(event.getClass());
+        }
+        return current.dispatch(event);
+    }
+
+    /**
+     * Sends an event to a callback, monitored if a monitor is set.
+     * @param callback
+     * @param event
+     * @throws EventCallback.MethodException
+     */
+    void send(EventCallback callback, EventObject<?> event) {
+        send(registry.monitor(), callback, event);
+    }
+
+    /**
+     * Sends events to a callback, monitored if a monitor is set.
+     * @param callback
+     * @param events
+     * @throws EventCallback.MethodException
+     */
+    void sendAll(EventCallback callback, List<? extends EventObject<?>> events) {
+        sendAll(registry.monitor(), callback, events);
+    }
+
+    /**
+     * Sends an event to a callback.
+     * @param monitor the monitor, null if disabled
+     * @param callback
+     * @param event
+     */
+    private static void send(DispatchMonitor monitor, EventCallback callback, EventObject<?> event) {
+        if (monitor == null) {
+            callback.sendEvent(event);
+        } else {
+            monitor.send(callback, event);
+        }
+    }
+
+    /**
+     * Sends events to a callback.
+     * @param monitor the monitor, null if disabled
+     * @param callback
+     * @param events
+     */
+    private static void sendAll(DispatchMonitor monitor, EventCallback callback,
+            List<? extends EventObject<?>> events) {
+        if (monitor == null) {
+            callback.sendEvents(events);
+        } else {
+            monitor.sendAll(callback, events);
+        }
+    }
+
+    /**
+     * Gets all the current callbacks.
+     * @return the callbacks, must not be modified
+     */
+    EventCallback[] callbacks() {
+        return registry.callbacks();
+    }
+
+    /**
+     * The registration of callbacks.
+     */
+    private final class CallbackSubscription implements Subscription {
+
+        /** The registered callbacks. */
+        private final EventCallback[] callbacks;
+
+        /**
+         * Creates a new subscription.
+         * @param callbacks
+         */
+        private CallbackSubscription(EventCallback[] callbacks) {
+            this.callbacks = callbacks;
+        }
+
+        @Override
+        public void close() {
+            boolean purged = false;
+            synchronized (lock) {
+                expunge();
+                for (EventCallback callback : callbacks) {
+                    if (cancel(callback)) {
+                        cancelled += 1;
+                    }
+                }
+                // compaction every size/2 cancellations: constant amortized cost
+                if (cancelled * 2 > registry.size()) {
+                    registry = registry.purge();
+                    cancelled = 0;
+                    purged = true;
+                }
+            }
+            if (purged) {
+                pruned();
+            }
+        }
+
+        @Override
+        public boolean isActive() {
+            return !callbacks[0].isCancelled();
         }
-        callings.forEach(callback -> callback.sendEvent(event));
     }
 }
@@ -11,6 +11,8 @@ public class EventObject<T> {
 
     /** The object on which the event occurred. */
     protected T source;
+    /** The bridge which received the event from a peer, it does not send it back. */
+    EventBridge receivedBy;
 
     /**
      * Constructs a prototypical Event.
@@ -25,6 +27,15 @@ public class EventObject<T> {
         this.source = source;
     }
 
+    /**
+     * Constructs an event without source yet, for recycled events.
+     *
+     * @see PooledEvent
+     */
+    protected EventObject() {
+        // source set on acquire
+    }
+
     /**
      * The object on which the event occurred.
      *
@@ -0,0 +1,91 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+/**
+ * A pool of recyclable events.
+ * <p>
+ * Each thread has its own free list: acquiring and releasing on the publishing thread, as
+ * {@link EventListeners#fireAndRelease(PooledEvent)} does, takes no lock and allocates
+ * nothing once the pool is warm.
+ * <p>
+ * In debug mode released events are dropped instead of reused, so a listener keeping one
+ * fails on its next access instead of reading another publish.
+ * @param <T> the source type
+ * @param <E> the event type
+ */
+public class EventPool<T, E extends PooledEvent<T>> {
+
+    /** Creates events. */
+    private final Supplier<E> factory;
+    /** The most free events kept per thread. */
+    private final int capacity;
+    /** Whether use after release is checked. */
+    private final boolean debug;
+    /** Free events of the current thread. */
+    private final ThreadLocal<ArrayDeque<PooledEvent<T>>> free;
+
+    /**
+     * Creates a new event pool.
+     * @param factory creates events
+     * @param capacity the most free events kept per thread
+     */
+    public EventPool(Supplier<E> factory, int capacity) {
+        this(factory, capacity, false);
+    }
+
+    /**
+     * Creates a new event pool.
+     * @param factory creates events
+     * @param capacity the most free events kept per thread
+     * @param debug true to detect use after release, events are then never reused
+     */
+    public EventPool(Supplier<E> factory, int capacity, boolean debug) {
+        this.factory = factory;
+        this.capacity = capacity;
+        this.debug = debug;
+        free = ThreadLocal.withInitial(() -> new ArrayDeque<>(Math.min(capacity, 16)));
+    }
+
+    /**
+     * Gets an event for a source.
+     * @param source the event source
+     * @return a free event, the caller fills its other fields
+     */
+    @SuppressWarnings("unchecked")
+    public E acquire(T source) {
+        E event = (E) free.get().pollFirst();
+        if (event == null) {
+            event = factory.get();
+            event.attach(this, debug);
+        }
+        event.acquire(source);
+        return event;
+    }
+
+    /**
+     * Gets the number of free events of the current thread.
+     * @return the free count
+     */
+    public int getFreeCount() {
+        return free.get().size();
+    }
+
+    /**
+     * Takes back a released event.
+     * @param event
+     */
+    void recycle(PooledEvent<T> event) {
+        if (debug) {
+            return;
+        }
+        final ArrayDeque<PooledEvent<T>> events = free.get();
+        if (events.size() < capacity) {
+            events.addFirst(event);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Event listeners delivering each event to its listeners in parallel.
+ * <p>
+ * When an event has many listeners, their snapshot is split into chunks delivered on a
+ * fork/join pool; firing returns once every listener has been called. The chunk size adapts
+ * to the measured cost of a listener call, so that a chunk lasts about
+ * {@value #TARGET_NANOS} ns: cheap listeners are not split into tasks costing more than
+ * the calls, and an event with few listeners is delivered by the calling thread.
+ * <p>
+ * Unlike sequential delivery, a failure does not stop the other listeners: once all are
+ * called, the first {@link EventCallback.MethodException}, in listener order, is thrown
+ * with the following ones as suppressed exceptions.
+ */
+public class ForkJoinEventListeners extends EventListeners {
+
+    /** The targeted chunk duration, in ns. */
+    static final long TARGET_NANOS = 100_000;
+    /** The smallest chunk. */
+    private static final int MIN_CHUNK = 16;
+    /** The largest chunk. */
+    private static final int MAX_CHUNK = 1 << 16;
+
+    /** The pool running the chunks. */
+    private final ForkJoinPool pool;
+    /** Moving average of a listener call cost, in ns. */
+    private volatile long callNanos = 1_000;
+
+    /**
+     * Creates new fork/join event listeners on the common pool.
+     */
+    public ForkJoinEventListeners() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates new fork/join event listeners.
+     * @param pool the pool running the chunks
+     */
+    public ForkJoinEventListeners(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Fires an event, its listeners being called in parallel.
+     * @param event
+     * @throws EventCallback.MethodException the first failure, with the others suppressed
+     */
+    @Override
+    public void fireEvent(EventObject<?> event) {
+        final EventCallback[] callings = dispatch(event);
+        if (callings.length == 0) {
+            return;
+        }
+        final FanOut fanOut = new FanOut(event, callings, 0, callings.length, getChunkSize());
+        final List<EventCallback.MethodException> failures = callings.length <= fanOut.chunk
+                ? fanOut.compute() : pool.invoke(fanOut);
+        if (failures != null) {
+            final EventCallback.MethodException first = failures.get(0);
+            for (int i = 1; i < failures.size(); i++) {
+                first.addSuppressed(failures.get(i));
+            }
+            throw first;
+        }
+    }
+
+    /**
+     * Fires a batch of events, event by event.
+     * @param events
+     * @throws EventCallback.MethodException the first failure of an event, with the others
+     *             of that event suppressed
+     */
+    @Override
+    public void fireEvents(Collection<? extends EventObject<?>> events) {
+        events.forEach(this::fireEvent);
+    }
+
+    /**
+     * Gets the current chunk size.
+     * @return the number of listeners called by a task
+     */
+    public int getChunkSize() {
+        return (int) Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, TARGET_NANOS / Math.max(1, callNanos)));
+    }
+
+    /**
+     * Updates the call cost average with a measure.
+     * @param nanos the chunk duration
+     * @param calls the chunk call count
+     */
+    private void measured(long nanos, int calls) {
+        // racy on purpose, an approximate average is enough
+        callNanos += (nanos / calls - callNanos) / 8;
+    }
+
+    /**
+     * Delivers an event to a range of callbacks.
+     */
+    private final class FanOut extends RecursiveTask<List<EventCallback.MethodException>> {
+
+        /** Serial. */
+        private static final long serialVersionUID = 1L;
+        /** The event. */
+        private final EventObject<?> event;
+        /** The callbacks. */
+        private final EventCallback[] callings;
+        /** The first callback. */
+        private final int from;
+        /** After the last callback. */
+        private final int to;
+        /** The chunk size. */
+        private final int chunk;
+
+        /**
+         * Creates a new fan out.
+         * @param event
+         * @param callings
+         * @param from
+         * @param to
+         * @param chunk
+         */
+        FanOut(EventObject<?> event, EventCallback[] callings, int from, int to, int chunk) {
+            this.event = event;
+            this.callings = callings;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected List<EventCallback.MethodException> compute() {
+            if (to - from <= chunk) {
+                return deliver();
+            }
+            final int middle = (from + to) >>> 1;
+            final FanOut right = new FanOut(event, callings, middle, to, chunk);
+            right.fork();
+            final List<EventCallback.MethodException> left = new FanOut(event, callings, from, middle, chunk).compute();
+            final List<EventCallback.MethodException> next = right.join();
+            if (left == null) {
+                return next;
+            }
+            if (next != null) {
+                left.addAll(next);
+            }
+            return left;
+        }
+
+        /**
+         * Delivers the event to the callbacks of the range.
+         * @return the failures in listener order, null if none
+         */
+        private List<EventCallback.MethodException> deliver() {
+            List<EventCallback.MethodException> failures = null;
+            final long start = System.nanoTime();
+            for (int i = from; i < to; i++) {
+                try {
+                    send(callings[i], event);
+                } catch (EventCallback.MethodException ex) {
+                    if (failures == null) {
+                        failures = new ArrayList<>();
+                    }
+                    failures.add(ex);
+                }
+            }
+            measured(System.nanoTime() - start, to - from);
+            return failures;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An event handler method, with its invoker.
+ * <p>
+ * The handlers of a class, found from their {@link Subscribe} annotation, are computed once
+ * per class and cached: registering another instance costs no reflection. A class with a
+ * generated {@link Dispatcher} is not scanned, its handlers call the dispatcher.
+ */
+final class Handler {
+
+    /** No handler. */
+    private static final Handler[] NONE = new Handler[0];
+    /** Lookup used to unreflect handlers, with this package access rights. */
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    /** The invoker type: (target, event) -> void. */
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Object.class, EventObject.class);
+    /** The batch invoker type: (target, events) -> void. */
+    private static final MethodType BATCH_INVOKER_TYPE = MethodType.methodType(void.class, Object.class, List.class);
+    /** {@link Dispatcher#dispatch}. */
+    private static final MethodHandle DISPATCH;
+    /** {@link Dispatcher#dispatchAll}. */
+    private static final MethodHandle DISPATCH_ALL;
+
+    static {
+        try {
+            DISPATCH = LOOKUP.findVirtual(Dispatcher.class, "dispatch",
+                    MethodType.methodType(void.class, Object.class, int.class, EventObject.class));
+            DISPATCH_ALL = LOOKUP.findVirtual(Dispatcher.class, "dispatchAll",
+                    MethodType.methodType(void.class, Object.class, int.class, List.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Annotated handlers per class. */
+    private static final ClassValue<Handler[]> ANNOTATED = new ClassValue<Handler[]>() {
+        @Override
+        protected Handler[] computeValue(Class<?> type) {
+            return scan(type);
+        }
+    };
+
+    /** The event type expected by this handler. */
+    final Class<? extends EventObject> eventType;
+    /** The handler method, looked up on first use for a dispatcher handler. */
+    private volatile Method method;
+    /** The generated dispatcher, null for a method invoked directly. */
+    private final Dispatcher<?> dispatcher;
+    /** The handler index in the dispatcher. */
+    private final int index;
+    /** Whether the method takes a list of events. */
+    final boolean batch;
+    /** The target type, null for a static method. */
+    final Class<?> targetType;
+    /** The argument type, the event parameter type or List. */
+    final Class<?> argumentType;
+    /** The invoker, null if the method cannot be called. */
+    final MethodHandle invoker;
+    /** Why the method cannot be called, if so. */
+    final Exception unusable;
+
+    /**
+     * Creates a new handler.
+     * @param eventType
+     * @param method
+     * @param batch
+     */
+    private Handler(Class<? extends EventObject> eventType, Method method, boolean batch) {
+        this.eventType = eventType;
+        this.method = method;
+        this.batch = batch;
+        dispatcher = null;
+        index = -1;
+        targetType = targetType(method);
+        argumentType = method.getParameterCount() == 1 ? method.getParameterTypes()[0] : Void.class;
+        MethodHandle handle = null;
+        Exception failure = null;
+        try {
+            handle = toInvoker(method, batch ? BATCH_INVOKER_TYPE : INVOKER_TYPE);
+        } catch (IllegalAccessException ex) {
+            failure = ex;
+        } catch (WrongMethodTypeException ex) {
+            failure = new IllegalArgumentException("wrong number of arguments for " + method, ex);
+        }
+        invoker = handle;
+        unusable = failure;
+    }
+
+    /**
+     * Creates a new handler calling a generated dispatcher.
+     * <p>
+     * The method is not looked up: it is only needed for removal and monitoring, never called.
+     * @param dispatcher
+     * @param index the handler index
+     */
+    private Handler(Dispatcher<?> dispatcher, int index) {
+        this.dispatcher = dispatcher;
+        this.index = index;
+        eventType = dispatcher.getEventType(index);
+        batch = dispatcher.isBatch(index);
+        // the listeners are instances of the declaring class, static handler or not
+        targetType = dispatcher.getDeclaringClass(index);
+        argumentType = batch ? List.class : eventType;
+        // (target, event) -> dispatcher.dispatch(target, index, event)
+        invoker = MethodHandles.insertArguments((batch ? DISPATCH_ALL : DISPATCH).bindTo(dispatcher), 1, index);
+        unusable = null;
+    }
+
+    /**
+     * Creates a handler.
+     * @param eventType the event type
+     * @param method the method
+     * @param batch true if the method takes a list of events
+     * @return the handler
+     */
+    static Handler of(Class<? extends EventObject> eventType, Method method, boolean batch) {
+        return new Handler(eventType, method, batch);
+    }
+
+    /**
+     * Gets the handler method.
+     * @return the method
+     * @throws IllegalStateException if the dispatcher does not match its listener class
+     */
+    Method method() {
+        Method m = method;
+        if (m == null) {
+            try {
+                m = dispatcher.getDeclaringClass(index).getDeclaredMethod(dispatcher.getName(index), argumentType);
+            } catch (NoSuchMethodException ex) {
+                throw new IllegalStateException("Stale dispatcher " + dispatcher.getClass().getName(), ex);
+            }
+            method = m;
+        }
+        return m;
+    }
+
+    /**
+     * Gets the annotated handlers of a class.
+     * @param type the listener class
+     * @return the handlers, must not be modified
+     * @throws IllegalArgumentException if a handler has not a single event parameter
+     */
+    static Handler[] annotated(Class<?> type) {
+        return ANNOTATED.get(type);
+    }
+
+    /**
+     * Finds the annotated handlers of a class, from the class to its ancestors.
+     * @param type the listener class
+     * @return the handlers
+     */
+    private static Handler[] scan(Class<?> type) {
+        final Handler[] generated = generated(type);
+        if (generated != null) {
+            return generated;
+        }
+        final List<Handler> handlers = new ArrayList<>();
+        final Set<String> seen = new HashSet<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (!method.isAnnotationPresent(Subscribe.class) || method.isBridge()) {
+                    continue;
+                }
+                // an overridden handler is registered once
+                if (!seen.add(method.getName() + Arrays.toString(method.getParameterTypes()))) {
+                    continue;
+                }
+                handlers.add(annotated(method));
+            }
+        }
+        return handlers.isEmpty() ? NONE : handlers.toArray(NONE);
+    }
+
+    /**
+     * Gets the handlers of the generated dispatcher of a class.
+     * @param type the listener class
+     * @return the handlers, null if the class has no usable dispatcher
+     */
+    private static Handler[] generated(Class<?> type) {
+        final Dispatcher<?> dispatcher;
+        try {
+            final Class<?> generated = Class.forName(type.getName() + Dispatcher.SUFFIX, true, type.getClassLoader());
+            if (!Dispatcher.class.isAssignableFrom(generated)) {
+                return null;
+            }
+            dispatcher = (Dispatcher<?>) generated.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+        final Handler[] handlers = new Handler[dispatcher.getHandlerCount()];
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new Handler(dispatcher, i);
+        }
+        return handlers.length == 0 ? null : handlers;
+    }
+
+    /**
+     * Creates the handler of an annotated method, the event type is its parameter type.
+     * @param method
+     * @return the handler
+     */
+    @SuppressWarnings("unchecked")
+    private static Handler annotated(Method method) {
+        if (method.getParameterCount() != 1) {
+            throw new IllegalArgumentException("@Subscribe method must take a single event: " + method);
+        }
+        try {
+            // handlers of non public classes are still reachable
+            method.setAccessible(true);
+        } catch (RuntimeException ex) {
+            // left as is, calls will report the access failure
+        }
+        final Class<?> parameter = method.getParameterTypes()[0];
+        if (EventObject.class.isAssignableFrom(parameter)) {
+            return new Handler((Class<? extends EventObject>) parameter, method, false);
+        }
+        if (List.class.equals(parameter)) {
+            final Class<?> element = elementType(method.getGenericParameterTypes()[0]);
+            if (element != null && EventObject.class.isAssignableFrom(element)) {
+                return new Handler((Class<? extends EventObject>) element, method, true);
+            }
+        }
+        throw new IllegalArgumentException("@Subscribe method must take an EventObject or a List of it: " + method);
+    }
+
+    /**
+     * Gets the element class of a {@code List<E>} or {@code List<? extends E>} type.
+     * @param listType
+     * @return the element class, null if unknown
+     */
+    private static Class<?> elementType(Type listType) {
+        if (!(listType instanceof ParameterizedType)) {
+            return null;
+        }
+        Type element = ((ParameterizedType) listType).getActualTypeArguments()[0];
+        if (element instanceof WildcardType) {
+            element = ((WildcardType) element).getUpperBounds()[0];
+        }
+        if (element instanceof ParameterizedType) {
+            element = ((ParameterizedType) element).getRawType();
+        }
+        return element instanceof Class ? (Class<?>) element : null;
+    }
+
+    /**
+     * Gets the type of the objects a method is called on.
+     * @param method
+     * @return the declaring class, null for a static method
+     */
+    private static Class<?> targetType(Method method) {
+        return Modifier.isStatic(method.getModifiers()) ? null : method.getDeclaringClass();
+    }
+
+    /**
+     * Creates the invoker of a handler method.
+     * @param method
+     * @param type the invoker type
+     * @return a (target, event) -> void method handle
+     * @throws IllegalAccessException if the method is not accessible
+     * @throws WrongMethodTypeException if the method does not take a single event
+     */
+    private static MethodHandle toInvoker(Method method, MethodType type) throws IllegalAccessException {
+        MethodHandle handle = LOOKUP.unreflect(method);
+        if (Modifier.isStatic(method.getModifiers())) {
+            // the target is ignored, as with reflection
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        return handle.asType(type);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.Logger;
+
+/**
+ * Event listeners delivering events through a lane per listener.
+ * <p>
+ * Firing an event only offers it to the lane of each matching listener; a lane is drained
+ * in order by a single task at a time on the executor. Listener failures are logged and do
+ * not stop the delivery.
+ * @param <L> the lane type
+ * @param <S> the subscription type
+ */
+abstract class LaneEventListeners<L extends LaneEventListeners.Lane, S extends Subscription> extends EventListeners {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(LaneEventListeners.class);
+    /** The executor running the drain tasks. */
+    private final Executor executor;
+    /** Lane per callback. */
+    private final ConcurrentMap<EventCallback, L> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates new lane event listeners.
+     * @param executor the executor running the drain tasks, it must not reject tasks
+     */
+    LaneEventListeners(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Creates the lane of a callback.
+     * @param callback
+     * @return the lane
+     */
+    abstract L createLane(EventCallback callback);
+
+    /**
+     * Creates the subscription exposing the lanes of a registration.
+     * @param subscription the registration
+     * @param added the lanes of its callbacks
+     * @return the subscription
+     */
+    abstract S createSubscription(Subscription subscription, List<L> added);
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public S addListener(Class<? extends EventObject> eventType, Object object, Method method) {
+        return (S) super.addListener(eventType, object, method);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public S addBatchListener(Class<? extends EventObject> eventType, Object object, Method method) {
+        return (S) super.addBatchListener(eventType, object, method);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public S addWeakListener(Class<? extends EventObject> eventType, Object object, Method method) {
+        return (S) super.addWeakListener(eventType, object, method);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public S register(Object listener) {
+        return (S) super.register(listener);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public S registerWeak(Object listener) {
+        return (S) super.registerWeak(listener);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public S addListener(Class<? extends EventObject> eventType, Object source, SourceMatch match, Object object,
+            Method method) {
+        return (S) super.addListener(eventType, source, match, object, method);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public S register(Object listener, Object source, SourceMatch match) {
+        return (S) super.register(listener, source, match);
+    }
+
+    /**
+     * Offers an event to each matching listener lane.
+     * <p>
+     * A lane rejecting the event does not keep it from the others: the first rejection is
+     * thrown once every lane was offered the event, with the next ones suppressed.
+     * @param event
+     * @throws IllegalArgumentException if the event is pooled
+     * @throws IllegalStateException if a lane rejects the event
+     */
+    @Override
+    public void fireEvent(EventObject<?> event) {
+        checkDeferrable(event);
+        IllegalStateException rejected = null;
+        for (EventCallback callback : dispatch(event)) {
+            final L lane = lanes.get(callback);
+            if (lane != null) {
+                try {
+                    lane.offer(event);
+                } catch (IllegalStateException ex) {
+                    if (rejected == null) {
+                        rejected = ex;
+                    } else {
+                        rejected.addSuppressed(ex);
+                    }
+                }
+            }
+        }
+        if (rejected != null) {
+            throw rejected;
+        }
+    }
+
+    /**
+     * Not supported: delivery is deferred, the event would be released before use.
+     * @param event
+     */
+    @Override
+    public void fireAndRelease(PooledEvent<?> event) {
+        throw new UnsupportedOperationException("Pooled events need synchronous delivery");
+    }
+
+    /**
+     * Offers a batch of events, event by event.
+     * @param events
+     */
+    @Override
+    public void fireEvents(Collection<? extends EventObject<?>> events) {
+        events.forEach(this::fireEvent);
+    }
+
+    @Override
+    Subscription subscribe(EventCallback... callbacks) {
+        final List<L> added = new ArrayList<>(callbacks.length);
+        // lanes are there before the callbacks can be dispatched to
+        synchronized (lanes) {
+            for (EventCallback callback : callbacks) {
+                final L lane = createLane(callback);
+                lanes.put(callback, lane);
+                added.add(lane);
+            }
+        }
+        // out of the lock: the sticky events are offered meanwhile
+        return createSubscription(super.subscribe(callbacks), added);
+    }
+
+    @Override
+    void deliverSticky(EventCallback callback, EventObject<?> event) {
+        final L lane = lanes.get(callback);
+        if (lane != null) {
+            lane.offerSticky(event);
+        }
+    }
+
+    @Override
+    void pruned() {
+        // removed callbacks are cancelled: their lanes still drain, the callbacks ignore the events
+        synchronized (lanes) {
+            lanes.keySet().removeIf(EventCallback::isCancelled);
+        }
+    }
+
+    /**
+     * The delivery lane of a callback.
+     */
+    abstract static class Lane implements Runnable {
+
+        /** The callback. */
+        final EventCallback callback;
+        /** The listeners owning this lane. */
+        private final LaneEventListeners<?, ?> owner;
+        /** Whether a drain task is scheduled. */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * Creates a new lane.
+         * @param callback
+         * @param owner the listeners owning this lane
+         */
+        Lane(EventCallback callback, LaneEventListeners<?, ?> owner) {
+            this.callback = callback;
+            this.owner = owner;
+        }
+
+        /**
+         * Offers an event, then {@link #schedule() schedules} the drain.
+         * @param event
+         * @throws IllegalStateException if the lane rejects the event
+         */
+        abstract void offer(EventObject<?> event);
+
+        /**
+         * Offers a kept event to the new lane, neither blocking nor failing the registration.
+         * @param event
+         */
+        void offerSticky(EventObject<?> event) {
+            offer(event);
+        }
+
+        /**
+         * Delivers pending events.
+         */
+        abstract void drain();
+
+        /**
+         * Checks events are pending.
+         * @return true if an event is waiting for delivery
+         */
+        abstract boolean hasPending();
+
+        /**
+         * Schedules the drain, unless already scheduled.
+         */
+        final void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                owner.executor.execute(this);
+            }
+        }
+
+        /**
+         * Drains until nothing is pending.
+         */
+        @Override
+        public final void run() {
+            do {
+                drain();
+                scheduled.set(false);
+                // an event offered after the last drain but before the reset is ours
+            } while (hasPending() && scheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * Sends drained events, by batch if the callback supports it; failures are logged.
+         * @param events
+         */
+        final void deliver(List<EventObject<?>> events) {
+            if (callback.isBatch()) {
+                send(events);
+            } else {
+                for (EventObject<?> event : events) {
+                    send(event);
+                }
+            }
+        }
+
+        /**
+         * Sends events and logs a failure.
+         * @param events
+         */
+        private void send(List<EventObject<?>> events) {
+            try {
+                owner.sendAll(callback, events);
+            } catch (EventCallback.MethodException ex) {
+                LOGGER.error("Listener failure", ex);
+            }
+        }
+
+        /**
+         * Sends an event and logs a failure.
+         * @param event
+         */
+        private void send(EventObject<?> event) {
+            try {
+                owner.send(callback, event);
+            } catch (EventCallback.MethodException ex) {
+                LOGGER.error("Listener failure", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free unbounded queue for many producers and a single consumer.
+ * <p>
+ * A producer swaps its node in as the new head in one atomic exchange, then links the
+ * previous head to it; the consumer follows the links from the tail. Between the two
+ * steps the consumer may briefly see the queue as empty.
+ * @param <E> the element type
+ */
+final class MpscQueue<E> {
+
+    /** The last offered node, updated by producers. */
+    private final AtomicReference<Node<E>> head;
+    /** The last polled node, consumer only. */
+    private Node<E> tail;
+
+    /**
+     * Creates an empty queue.
+     */
+    MpscQueue() {
+        final Node<E> stub = new Node<>(null);
+        head = new AtomicReference<>(stub);
+        tail = stub;
+    }
+
+    /**
+     * Adds an element, from any thread.
+     * @param element
+     */
+    void offer(E element) {
+        final Node<E> node = new Node<>(element);
+        head.getAndSet(node).next = node;
+    }
+
+    /**
+     * Removes the oldest element, from the consumer thread only.
+     * @return the element, null if none
+     */
+    E poll() {
+        final Node<E> next = tail.next;
+        if (next == null) {
+            return null;
+        }
+        final E element = next.value;
+        next.value = null;
+        tail = next;
+        return element;
+    }
+
+    /**
+     * A queue node.
+     * @param <E> the element type
+     */
+    private static final class Node<E> {
+
+        /** The element, cleared once polled. */
+        E value;
+        /** The next node. */
+        volatile Node<E> next;
+
+        /**
+         * Creates a node.
+         * @param value
+         */
+        Node(E value) {
+            this.value = value;
+        }
+    }
+}
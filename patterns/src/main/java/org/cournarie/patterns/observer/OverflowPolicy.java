@@ -0,0 +1,19 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * What a {@link QueuedEventListeners} does with an event for a listener whose queue is full.
+ */
+public enum OverflowPolicy {
+
+    /** The publisher waits for room in the queue. */
+    BLOCK,
+    /** The new event is dropped. */
+    DROP_NEWEST,
+    /** The oldest queued event is dropped to make room. */
+    DROP_OLDEST,
+    /** The publisher gets an {@link IllegalStateException}. */
+    FAIL
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * A recyclable event, acquired from an {@link EventPool}.
+ * <p>
+ * Once released the event goes back to its pool and is reused by a later acquire, so
+ * listeners must not keep it. With a debug pool, released events are never reused and
+ * any access to them fails; subclass getters call {@link #checkLive()} to take part in
+ * that check, and clear their fields in {@link #recycle()}.
+ * @param <T> the source type
+ */
+public abstract class PooledEvent<T> extends EventObject<T> {
+
+    /** The owner pool. */
+    private EventPool<T, ?> pool;
+    /** Whether use after release is checked. */
+    private boolean checked;
+    /** Whether the event is acquired. */
+    private boolean live;
+
+    /**
+     * Creates a new pooled event, its source is set on acquire.
+     */
+    protected PooledEvent() {
+        super();
+    }
+
+    /**
+     * The object on which the event occurred.
+     *
+     * @return The object on which the event occurred.
+     * @throws IllegalStateException in debug mode, if the event is released
+     */
+    @Override
+    public T getSource() {
+        checkLive();
+        return source;
+    }
+
+    /**
+     * Gives this event back to its pool.
+     * @throws IllegalStateException if already released
+     */
+    public void release() {
+        if (!live) {
+            throw new IllegalStateException("Event already released: " + this);
+        }
+        live = false;
+        recycle();
+        source = null;
+        pool.recycle(this);
+    }
+
+    /**
+     * Checks the event is acquired, in debug mode.
+     * @throws IllegalStateException in debug mode, if the event is released
+     */
+    protected final void checkLive() {
+        if (checked && !live) {
+            throw new IllegalStateException("Event used after release: " + getClass().getName());
+        }
+    }
+
+    /**
+     * Clears the subclass state on release.
+     */
+    protected void recycle() {
+        // nothing to clear here
+    }
+
+    /**
+     * Attaches this event to its pool.
+     * @param owner the pool
+     * @param debug true to check use after release
+     */
+    final void attach(EventPool<T, ?> owner, boolean debug) {
+        pool = owner;
+        checked = debug;
+    }
+
+    /**
+     * Marks this event acquired.
+     * @param src the event source
+     */
+    final void acquire(T src) {
+        if (src == null) {
+            throw new IllegalArgumentException("Null source");
+        }
+        source = src;
+        live = true;
+    }
+}
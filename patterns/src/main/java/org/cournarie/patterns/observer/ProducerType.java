@@ -0,0 +1,15 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * How many threads publish on a {@link RingBufferEventBus}.
+ */
+public enum ProducerType {
+
+    /** A single thread publishes, slots are claimed with an uncontended compare-and-set. */
+    SINGLE,
+    /** Any thread publishes, slots are claimed with an atomic increment. */
+    MULTI
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event listeners delivering events through a bounded queue per listener.
+ * <p>
+ * Firing an event only queues it for each matching listener; every queue is drained in
+ * order by its own task on the executor. When a queue is full the {@link OverflowPolicy}
+ * decides whether the publisher waits, an event is dropped or the publisher fails, once
+ * the other queues got the event.
+ * Batch listeners get everything queued since their last call at once.
+ * <p>
+ * Listener failures are logged and do not stop the delivery.
+ * @author eric
+ */
+public class QueuedEventListeners extends LaneEventListeners<QueuedEventListeners.BoundedLane, QueuedSubscription> {
+
+    /** The queue capacity. */
+    private final int capacity;
+    /** The full queue policy. */
+    private final OverflowPolicy policy;
+
+    /**
+     * Creates a new queued event listeners.
+     * @param executor the executor running the drain tasks, it must not reject tasks
+     * @param capacity the queue capacity of each listener
+     * @param policy what to do when a listener queue is full
+     */
+    public QueuedEventListeners(Executor executor, int capacity, OverflowPolicy policy) {
+        super(executor);
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    @Override
+    BoundedLane createLane(EventCallback callback) {
+        return new BoundedLane(callback, this, capacity, policy);
+    }
+
+    @Override
+    QueuedSubscription createSubscription(Subscription subscription, List<BoundedLane> added) {
+        return new BoundedSubscription(subscription, added);
+    }
+
+    /**
+     * The bounded delivery queue of a callback.
+     */
+    static final class BoundedLane extends LaneEventListeners.Lane {
+
+        /** Pending events. */
+        private final BlockingQueue<EventObject<?>> queue;
+        /** The queue capacity, the most events delivered at once. */
+        private final int capacity;
+        /** The full queue policy. */
+        private final OverflowPolicy policy;
+        /** Dropped or rejected events. */
+        private final AtomicLong drops = new AtomicLong();
+
+        /**
+         * Creates a new lane.
+         * @param callback
+         * @param owner
+         * @param capacity
+         * @param policy
+         */
+        private BoundedLane(EventCallback callback, QueuedEventListeners owner, int capacity, OverflowPolicy policy) {
+            super(callback, owner);
+            queue = new ArrayBlockingQueue<>(capacity);
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+
+        /**
+         * Queues an event according to the overflow policy, and schedules the drain.
+         * @param event
+         */
+        @Override
+        void offer(EventObject<?> event) {
+            if (!queue.offer(event)) {
+                switch (policy) {
+                    case BLOCK:
+                        try {
+                            queue.put(event);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            drops.incrementAndGet();
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        do {
+                            if (queue.poll() != null) {
+                                drops.incrementAndGet();
+                            }
+                        } while (!queue.offer(event));
+                        break;
+                    case DROP_NEWEST:
+                        drops.incrementAndGet();
+                        break;
+                    default:
+                        drops.incrementAndGet();
+                        throw new IllegalStateException("Listener queue full for '" + event + "'");
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Queues a kept event, whatever the policy the events over the capacity are dropped.
+         * @param event
+         */
+        @Override
+        void offerSticky(EventObject<?> event) {
+            if (queue.offer(event)) {
+                schedule();
+            } else {
+                drops.incrementAndGet();
+            }
+        }
+
+        @Override
+        void drain() {
+            final List<EventObject<?>> pending = new ArrayList<>(Math.min(capacity, queue.size()));
+            while (queue.drainTo(pending, capacity) > 0) {
+                deliver(pending);
+                pending.clear();
+            }
+        }
+
+        @Override
+        boolean hasPending() {
+            return !queue.isEmpty();
+        }
+    }
+
+    /**
+     * A registration with its delivery queues.
+     */
+    private static final class BoundedSubscription implements QueuedSubscription {
+
+        /** The registration. */
+        private final Subscription subscription;
+        /** The delivery queues of the registered callbacks. */
+        private final List<BoundedLane> lanes;
+
+        /**
+         * Creates a new subscription.
+         * @param subscription
+         * @param lanes
+         */
+        private BoundedSubscription(Subscription subscription, List<BoundedLane> lanes) {
+            this.subscription = subscription;
+            this.lanes = lanes;
+        }
+
+        @Override
+        public void close() {
+            subscription.close();
+        }
+
+        @Override
+        public boolean isActive() {
+            return subscription.isActive();
+        }
+
+        @Override
+        public int getQueueDepth() {
+            int depth = 0;
+            for (BoundedLane lane : lanes) {
+                depth += lane.queue.size();
+            }
+            return depth;
+        }
+
+        @Override
+        public long getDropCount() {
+            long count = 0;
+            for (BoundedLane lane : lanes) {
+                count += lane.drops.get();
+            }
+            return count;
+        }
+    }
+}
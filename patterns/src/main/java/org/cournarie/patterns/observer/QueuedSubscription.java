@@ -0,0 +1,22 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * A registration on {@link QueuedEventListeners}, with its delivery queue counters.
+ */
+public interface QueuedSubscription extends Subscription {
+
+    /**
+     * Gets the number of events waiting for delivery.
+     * @return the queue depth
+     */
+    int getQueueDepth();
+
+    /**
+     * Gets the number of events dropped or rejected because the queue was full.
+     * @return the drop count
+     */
+    long getDropCount();
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable set of registered callbacks with its dispatch table.
+ * <p>
+ * The dispatch table maps a concrete event class to the callbacks accepting it, in
+ * registration order. Each entry is computed once, the first time such an event is
+ * fired; registration changes create a new registry, hence a new empty table.
+ * <p>
+ * Source filtered callbacks are not in the dispatch table but indexed by their source, so
+ * an event only meets the filtered callbacks of its own source.
+ */
+final class Registry {
+
+    /** No callback. */
+    static final EventCallback[] NONE = new EventCallback[0];
+    /** The empty registry. */
+    static final Registry EMPTY = new Registry(NONE, null, null, null);
+
+    /** The registered callbacks, in registration order. */
+    private final EventCallback[] callbacks;
+    /** Callbacks by concrete event class. */
+    private final ConcurrentMap<Class<?>, EventCallback[]> dispatch = new ConcurrentHashMap<>();
+    /** Source filtered callbacks by equal source, null if none. */
+    private final Map<Object, EventCallback[]> byEquality;
+    /** Source filtered callbacks by identical source, null if none. */
+    private final Map<Object, EventCallback[]> byIdentity;
+    /** The dispatch monitor, null if disabled. */
+    private final DispatchMonitor monitor;
+
+    /**
+     * Creates a new registry.
+     * @param callbacks the registered callbacks, not copied
+     * @param monitor the dispatch monitor, null if disabled
+     */
+    private Registry(EventCallback[] callbacks, DispatchMonitor monitor) {
+        this(callbacks, monitor, index(callbacks, SourceMatch.EQUALITY), index(callbacks, SourceMatch.IDENTITY));
+    }
+
+    /**
+     * Creates a new registry.
+     * @param callbacks the registered callbacks, not copied
+     * @param monitor the dispatch monitor, null if disabled
+     * @param byEquality source filtered callbacks by equal source
+     * @param byIdentity source filtered callbacks by identical source
+     */
+    private Registry(EventCallback[] callbacks, DispatchMonitor monitor, Map<Object, EventCallback[]> byEquality,
+            Map<Object, EventCallback[]> byIdentity) {
+        this.callbacks = callbacks;
+        this.monitor = monitor;
+        this.byEquality = byEquality;
+        this.byIdentity = byIdentity;
+    }
+
+    /**
+     * Gets the dispatch monitor.
+     * @return the monitor, null if disabled
+     */
+    DispatchMonitor monitor() {
+        return monitor;
+    }
+
+    /**
+     * Creates a registry with the same callbacks and another monitor.
+     * @param updated the dispatch monitor, null to disable
+     * @return the new registry
+     */
+    Registry monitor(DispatchMonitor updated) {
+        return new Registry(callbacks, updated, byEquality, byIdentity);
+    }
+
+    /**
+     * Gets the number of registered callbacks, cancelled ones included.
+     * @return the callback count
+     */
+    int size() {
+        return callbacks.length;
+    }
+
+    /**
+     * Gets all registered callbacks.
+     * @return the callbacks, must not be modified
+     */
+    EventCallback[] callbacks() {
+        return callbacks;
+    }
+
+    /**
+     * Gets the callbacks accepting an event class.
+     * @param eventClass the concrete event class
+     * @return the matching callbacks, must not be modified
+     */
+    EventCallback[] dispatch(Class<?> eventClass) {
+        if (callbacks.length == 0) {
+            return NONE;
+        }
+        EventCallback[] matching = dispatch.get(eventClass);
+        if (matching == null) {
+            matching = match(eventClass);
+            final EventCallback[] previous = dispatch.putIfAbsent(eventClass, matching);
+            if (previous != null) {
+                matching = previous;
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Whether some callbacks are source filtered.
+     * @return true if any
+     */
+    boolean sourced() {
+        return byEquality != null || byIdentity != null;
+    }
+
+    /**
+     * Gets the source filtered callbacks of a source, whatever their event type.
+     * @param source the event source
+     * @param match how the callbacks match the source
+     * @return the callbacks, must not be modified
+     */
+    EventCallback[] sourced(Object source, SourceMatch match) {
+        final Map<Object, EventCallback[]> index = match == SourceMatch.IDENTITY ? byIdentity : byEquality;
+        if (index == null) {
+            return NONE;
+        }
+        final EventCallback[] found = index.get(source);
+        return found == null ? NONE : found;
+    }
+
+    /**
+     * Gets the callbacks accepting an event, source filtered ones included.
+     * @param event the event
+     * @return the matching callbacks: unfiltered ones, then those matching the source by equality,
+     * then by identity, must not be modified
+     */
+    EventCallback[] dispatch(EventObject<?> event) {
+        final Class<?> eventClass = event.getClass();
+        final EventCallback[] matching = dispatch(eventClass);
+        if (!sourced()) {
+            return matching;
+        }
+        final Object source = event.getSource();
+        final EventCallback[] equal = sourced(source, SourceMatch.EQUALITY);
+        final EventCallback[] identical = sourced(source, SourceMatch.IDENTITY);
+        if (equal.length + identical.length == 0) {
+            return matching;
+        }
+        final EventCallback[] all = Arrays.copyOf(matching, matching.length + equal.length + identical.length);
+        int count = matching.length;
+        for (EventCallback callback : equal) {
+            if (callback.accepts(eventClass)) {
+                all[count++] = callback;
+            }
+        }
+        for (EventCallback callback : identical) {
+            if (callback.accepts(eventClass)) {
+                all[count++] = callback;
+            }
+        }
+        return count == all.length ? all : Arrays.copyOf(all, count);
+    }
+
+    /**
+     * Creates a registry with more callbacks.
+     * @param added the callbacks to add
+     * @return the new registry
+     */
+    Registry add(EventCallback... added) {
+        final EventCallback[] updated = new EventCallback[callbacks.length + added.length];
+        int count = 0;
+        for (EventCallback lm : callbacks) {
+            if (!lm.isCancelled()) {
+                updated[count++] = lm;
+            }
+        }
+        for (EventCallback lm : added) {
+            updated[count++] = lm;
+        }
+        return new Registry(count == updated.length ? updated : Arrays.copyOf(updated, count), monitor);
+    }
+
+    /**
+     * Creates a registry without the cancelled callbacks.
+     * @return the new registry
+     */
+    Registry purge() {
+        return remove(null, null, null);
+    }
+
+    /**
+     * Creates a registry without the callbacks matching the arguments, nor the cancelled ones.
+     * @param eventType null to match nothing
+     * @param target
+     * @param method
+     * @return the new registry, or this one if nothing is removed
+     */
+    Registry remove(Class<?> eventType, Object target, Method method) {
+        final EventCallback[] updated = new EventCallback[callbacks.length];
+        int count = 0;
+        for (EventCallback lm : callbacks) {
+            if (!lm.isCancelled() && (eventType == null || !lm.match(eventType, target, method))) {
+                updated[count++] = lm;
+            }
+        }
+        if (count == callbacks.length) {
+            return this;
+        }
+        return new Registry(count == 0 ? NONE : Arrays.copyOf(updated, count), monitor);
+    }
+
+    /**
+     * Computes the callbacks accepting an event class.
+     * @param eventClass
+     * @return the matching callbacks
+     */
+    private EventCallback[] match(Class<?> eventClass) {
+        final EventCallback[] matching = new EventCallback[callbacks.length];
+        int count = 0;
+        for (EventCallback callback : callbacks) {
+            if (callback.source() == null && callback.accepts(eventClass)) {
+                matching[count++] = callback;
+            }
+        }
+        return count == 0 ? NONE : Arrays.copyOf(matching, count);
+    }
+
+    /**
+     * Indexes the source filtered callbacks by source.
+     * @param callbacks
+     * @param match the source match to index
+     * @return the callbacks by source, in registration order, null if none
+     */
+    private static Map<Object, EventCallback[]> index(EventCallback[] callbacks, SourceMatch match) {
+        Map<Object, List<EventCallback>> sources = null;
+        for (EventCallback callback : callbacks) {
+            if (callback.sourceMatch() == match) {
+                if (sources == null) {
+                    sources = match == SourceMatch.IDENTITY ? new IdentityHashMap<>() : new HashMap<>();
+                }
+                sources.computeIfAbsent(callback.source(), s -> new ArrayList<>()).add(callback);
+            }
+        }
+        if (sources == null) {
+            return null;
+        }
+        final Map<Object, EventCallback[]> index = match == SourceMatch.IDENTITY
+                ? new IdentityHashMap<>(sources.size()) : new HashMap<>(sources.size() * 2);
+        sources.forEach((source, list) -> index.put(source, list.toArray(NONE)));
+        return index;
+    }
+}
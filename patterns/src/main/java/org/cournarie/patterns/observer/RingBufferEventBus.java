@@ -0,0 +1,284 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.log4j.Logger;
+
+/**
+ * Event listeners delivering events through a pre-allocated ring buffer.
+ * <p>
+ * Producers claim a sequence, store the event in the matching slot and publish the
+ * sequence; a dedicated consumer thread reads the slots in sequence order and fans
+ * each event out to the registered listeners. Firing an event thus only costs a slot
+ * claim, and waits only when the consumer is a full ring behind.
+ * <p>
+ * Listeners are registered as with {@link EventListeners}; their failures are logged
+ * and do not stop the consumer.
+ * @author eric
+ */
+public final class RingBufferEventBus extends EventListeners implements AutoCloseable {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(RingBufferEventBus.class);
+    /** Consumer thread numbering. */
+    private static final AtomicLong THREAD_COUNT = new AtomicLong();
+    /** Offset added to the claimed sequence once closed, no claim succeeds afterwards. */
+    private static final long CLOSED = 1L << 62;
+    /** The event slots. */
+    private final EventObject<?>[] slots;
+    /** The sequence published in each slot, set once the slot is written. */
+    private final AtomicLongArray published;
+    /** Slot index mask. */
+    private final int mask;
+    /** How producers claim sequences. */
+    private final ProducerType producerType;
+    /** How threads wait. */
+    private final WaitStrategy waitStrategy;
+    /** The last claimed sequence, offset by {@link #CLOSED} once closed. */
+    private final AtomicLong claimed = new AtomicLong(-1);
+    /** The last consumed sequence, gates the producers. */
+    private final AtomicLong consumed = new AtomicLong(-1);
+    /** Blocking strategy lock. */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Blocking strategy signal of a published sequence. */
+    private final Condition available = lock.newCondition();
+    /** The consumer thread. */
+    private final Thread consumer;
+    /** Whether events are accepted. */
+    private volatile boolean running = true;
+    /** The last sequence claimed before closing, set before {@link #running} is cleared. */
+    private volatile long last = Long.MAX_VALUE;
+
+    /**
+     * Creates and starts a new ring buffer event bus.
+     * @param size the ring size, a power of two
+     * @param producerType how many threads fire events
+     * @param waitStrategy how threads wait
+     */
+    public RingBufferEventBus(int size, ProducerType producerType, WaitStrategy waitStrategy) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two: " + size);
+        }
+        slots = new EventObject<?>[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        mask = size - 1;
+        this.producerType = producerType;
+        this.waitStrategy = waitStrategy;
+        consumer = new Thread(this::consume, "event-bus-" + THREAD_COUNT.incrementAndGet());
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Publishes an event, the listeners are called from the consumer thread.
+     * @param event
+     * @throws IllegalArgumentException if the event is pooled
+     * @throws IllegalStateException if the bus is closed
+     */
+    @Override
+    public void fireEvent(EventObject<?> event) {
+        checkDeferrable(event);
+        if (!running) {
+            throw new IllegalStateException("Event bus closed");
+        }
+        final long sequence = claim();
+        final long wrapPoint = sequence - slots.length;
+        // a claimed sequence is always published, the consumer drains it even when closing
+        while (wrapPoint > consumed.get()) {
+            waitForSlot();
+        }
+        final int index = (int) sequence & mask;
+        slots[index] = event;
+        // releases the slot content to the consumer
+        published.lazySet(index, sequence);
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            signal();
+        }
+    }
+
+    /**
+     * Not supported: delivery is deferred, the event would be released before use.
+     * @param event
+     */
+    @Override
+    public void fireAndRelease(PooledEvent<?> event) {
+        throw new UnsupportedOperationException("Pooled events need synchronous delivery");
+    }
+
+    /**
+     * Publishes a batch of events, one slot per event.
+     * @param events
+     * @throws IllegalStateException if the bus is closed
+     */
+    @Override
+    public void fireEvents(Collection<? extends EventObject<?>> events) {
+        events.forEach(this::fireEvent);
+    }
+
+    /**
+     * Stops accepting events, delivers the claimed ones and stops the consumer.
+     * <p>
+     * Waits for the consumer; if interrupted meanwhile, keeps waiting and restores the
+     * interrupt status before returning.
+     */
+    @Override
+    public void close() {
+        final long sequence = claimed.getAndUpdate(s -> closed(s) ? s : s + CLOSED);
+        if (!closed(sequence)) {
+            last = sequence;
+            running = false;
+            signal();
+        }
+        boolean interrupted = false;
+        while (consumer.isAlive()) {
+            try {
+                consumer.join();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of events published and not consumed yet.
+     * @return the backlog
+     */
+    public long getBacklog() {
+        return (running ? claimed.get() : last) - consumed.get();
+    }
+
+    /**
+     * Claims the next sequence.
+     * @return the sequence
+     * @throws IllegalStateException if the bus is closed
+     */
+    private long claim() {
+        final long next;
+        if (producerType == ProducerType.SINGLE) {
+            // only close competes with the single producer
+            final long current = claimed.get();
+            next = current + 1;
+            if (closed(current) || !claimed.compareAndSet(current, next)) {
+                throw new IllegalStateException("Event bus closed");
+            }
+        } else {
+            next = claimed.incrementAndGet();
+            if (closed(next)) {
+                throw new IllegalStateException("Event bus closed");
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Checks a claimed sequence was offset by closing.
+     * @param sequence the claimed sequence
+     * @return true if closed
+     */
+    private static boolean closed(long sequence) {
+        // the first sequence is -1
+        return sequence >= CLOSED - 1;
+    }
+
+    /**
+     * Producer wait for the consumer to free a slot.
+     */
+    private void waitForSlot() {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(1L);
+                break;
+        }
+    }
+
+    /**
+     * Wakes up a blocked consumer.
+     */
+    private void signal() {
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Consumer loop: dispatches events in sequence order until closed and drained.
+     */
+    private void consume() {
+        long next = 0;
+        while (true) {
+            final int index = (int) next & mask;
+            if (published.get(index) == next) {
+                final EventObject<?> event = slots[index];
+                slots[index] = null;
+                consumed.lazySet(next);
+                dispatchEvent(event);
+                next += 1;
+            } else if (!running && next > last) {
+                return;
+            } else {
+                waitForEvent(index, next);
+            }
+        }
+    }
+
+    /**
+     * Consumer wait for a sequence to be published.
+     * @param index the sequence slot
+     * @param sequence the sequence
+     */
+    private void waitForEvent(int index, long sequence) {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                lock.lock();
+                try {
+                    // published sequences signal, as does closing
+                    while (published.get(index) != sequence && (running || sequence <= last)) {
+                        available.awaitUninterruptibly();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Sends an event to the listeners.
+     * @param event
+     */
+    private void dispatchEvent(EventObject<?> event) {
+        for (EventCallback callback : dispatch(event)) {
+            try {
+                send(callback, event);
+            } catch (EventCallback.MethodException ex) {
+                LOGGER.error("Listener failure on " + consumer.getName(), ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time, in submission order, on an underlying executor.
+ * <p>
+ * At most one drain task is scheduled at once; it runs every pending task before
+ * returning its thread to the executor. Tasks must not throw.
+ */
+final class SerialExecutor implements Executor {
+
+    /** Pending tasks. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /** Number of pending tasks, the drain is scheduled when it leaves zero. */
+    private final AtomicInteger pending = new AtomicInteger();
+    /** The executor running the drain. */
+    private final Executor executor;
+
+    /**
+     * Creates a new serial executor.
+     * @param executor the executor running the tasks
+     */
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (pending.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    /**
+     * Gets the number of tasks not run yet.
+     * @return the pending task count
+     */
+    int pending() {
+        return pending.get();
+    }
+
+    /**
+     * Runs tasks until none is pending.
+     */
+    private void drain() {
+        do {
+            tasks.poll().run();
+        } while (pending.decrementAndGet() != 0);
+    }
+}
@@ -0,0 +1,15 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * How a source filtered listener matches the event source.
+ */
+public enum SourceMatch {
+
+    /** The event source is the same object. */
+    IDENTITY,
+    /** The event source equals the object. */
+    EQUALITY
+}
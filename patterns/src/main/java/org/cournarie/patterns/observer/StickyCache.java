@@ -0,0 +1,188 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The last fired event per event class, and optionally per source.
+ * <p>
+ * An entry is used when its event is fired, or delivered to a new listener; once over
+ * capacity, the least recently used entries are evicted. Using an entry takes no lock: a
+ * new entry replaces the previous one in a concurrent map and is queued in use order, so
+ * eviction polls the queue head; replaced entries left in the queue are skipped, and purged
+ * once the queue grows past twice the capacity.
+ */
+final class StickyCache {
+
+    /** The most events kept. */
+    private final int capacity;
+    /** Whether the events are kept per source too. */
+    private final boolean perSource;
+    /** The entries by key. */
+    private final ConcurrentMap<Object, Entry> entries = new ConcurrentHashMap<>();
+    /** The entries in use order, replaced ones included. */
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<>();
+    /** The queue length. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Creates a new cache.
+     * @param capacity the most events kept
+     * @param perSource true to keep the last event per class and source
+     */
+    StickyCache(int capacity, boolean perSource) {
+        this.capacity = capacity;
+        this.perSource = perSource;
+    }
+
+    /**
+     * Keeps an event as the last one of its key.
+     * <p>
+     * Pooled events are recycled once fired, so they are not kept.
+     * @param event
+     */
+    void put(EventObject<?> event) {
+        if (event instanceof PooledEvent) {
+            return;
+        }
+        final Entry entry = new Entry(key(event), event);
+        entries.put(entry.key, entry);
+        queue(entry);
+    }
+
+    /**
+     * Marks a kept event as used, unless replaced or evicted meanwhile.
+     * @param event the kept event
+     */
+    void used(EventObject<?> event) {
+        final Object key = key(event);
+        final Entry entry = entries.get(key);
+        if (entry != null && entry.event == event) {
+            final Entry fresh = new Entry(key, event);
+            if (entries.replace(key, entry, fresh)) {
+                queue(fresh);
+            }
+        }
+    }
+
+    /**
+     * Gets the kept events.
+     * @return the events, least recently used first
+     */
+    List<EventObject<?>> events() {
+        final List<EventObject<?>> events = new ArrayList<>();
+        for (Entry entry : order) {
+            if (entries.get(entry.key) == entry) {
+                events.add(entry.event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Gets the key of an event.
+     * @param event
+     * @return the event class, with the source if kept per source
+     */
+    private Object key(EventObject<?> event) {
+        return perSource ? new SourceKey(event) : event.getClass();
+    }
+
+    /**
+     * Queues a new entry as the most recently used one.
+     * @param entry
+     */
+    private void queue(Entry entry) {
+        order.offer(entry);
+        if (queued.incrementAndGet() > capacity * 2 || entries.size() > capacity) {
+            trim();
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries and purges the replaced ones.
+     */
+    private synchronized void trim() {
+        while (entries.size() > capacity) {
+            final Entry oldest = order.poll();
+            if (oldest == null) {
+                break;
+            }
+            queued.decrementAndGet();
+            entries.remove(oldest.key, oldest);
+        }
+        if (queued.get() > capacity * 2) {
+            for (Iterator<Entry> it = order.iterator(); it.hasNext();) {
+                final Entry entry = it.next();
+                if (entries.get(entry.key) != entry) {
+                    it.remove();
+                    queued.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * A kept event.
+     */
+    private static final class Entry {
+
+        /** The event key. */
+        final Object key;
+        /** The event. */
+        final EventObject<?> event;
+
+        /**
+         * Creates a new entry.
+         * @param key
+         * @param event
+         */
+        Entry(Object key, EventObject<?> event) {
+            this.key = key;
+            this.event = event;
+        }
+    }
+
+    /**
+     * An event class and source key.
+     */
+    private static final class SourceKey {
+
+        /** The event class. */
+        private final Class<?> type;
+        /** The event source. */
+        private final Object source;
+
+        /**
+         * Creates the key of an event.
+         * @param event
+         */
+        SourceKey(EventObject<?> event) {
+            type = event.getClass();
+            source = event.getSource();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SourceKey)) {
+                return false;
+            }
+            final SourceKey other = (SourceKey) obj;
+            return type == other.type && Objects.equals(source, other.source);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * type.hashCode() + Objects.hashCode(source);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import org.apache.log4j.Logger;
+
+/**
+ * Event listeners delivering events on parallel lanes, in order per key.
+ * <p>
+ * Each event is hashed by its key onto one of a fixed number of lanes, each lane having its
+ * own thread: the events of a key are delivered in order, the events of different keys in
+ * parallel. Publishers only append to the lock-free queue of a lane, and wake its thread up
+ * if it waits.
+ * <p>
+ * The queue depth of each lane shows hot keys. Listener failures are logged and do not
+ * stop the delivery.
+ */
+public class StripedEventListeners extends EventListeners implements AutoCloseable {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(StripedEventListeners.class);
+    /** Striped listeners counter. */
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    /** The key of an event. */
+    private final Function<? super EventObject<?>, ?> keyExtractor;
+    /** The lanes. */
+    private final StripeLane[] lanes;
+    /** Whether closed. */
+    private volatile boolean closed;
+
+    /**
+     * Creates new striped event listeners, keyed by event source.
+     * @param laneCount the number of lanes
+     */
+    public StripedEventListeners(int laneCount) {
+        this(laneCount, EventObject::getSource);
+    }
+
+    /**
+     * Creates new striped event listeners and starts the lane threads.
+     * @param laneCount the number of lanes, usually the number of cores
+     * @param keyExtractor the ordering key of an event
+     */
+    public StripedEventListeners(int laneCount, Function<? super EventObject<?>, ?> keyExtractor) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("At least one lane expected: " + laneCount);
+        }
+        this.keyExtractor = keyExtractor;
+        lanes = new StripeLane[laneCount];
+        final int id = COUNTER.incrementAndGet();
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new StripeLane();
+            final Thread thread = new Thread(lanes[i], "striped-" + id + "-lane-" + i);
+            thread.setDaemon(true);
+            lanes[i].thread = thread;
+        }
+        for (StripeLane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * Queues an event on the lane of its key.
+     * @param event
+     * @throws IllegalArgumentException if the event is pooled
+     * @throws IllegalStateException if closed
+     */
+    @Override
+    public void fireEvent(EventObject<?> event) {
+        checkDeferrable(event);
+        final EventCallback[] callings = dispatch(event);
+        if (callings.length > 0) {
+            offer(event, callings);
+        }
+    }
+
+    /**
+     * Queues a batch of events, event by event.
+     * @param events
+     * @throws IllegalStateException if closed
+     */
+    @Override
+    public void fireEvents(Collection<? extends EventObject<?>> events) {
+        events.forEach(this::fireEvent);
+    }
+
+    /**
+     * Not supported: delivery is deferred, the event would be released before use.
+     * @param event
+     */
+    @Override
+    public void fireAndRelease(PooledEvent<?> event) {
+        throw new UnsupportedOperationException("Pooled events need synchronous delivery");
+    }
+
+    /**
+     * Gets the number of lanes.
+     * @return the lane count
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Gets the lane of a key.
+     * @param key the event key
+     * @return the lane index
+     */
+    public int getLane(Object key) {
+        final int h = key == null ? 0 : key.hashCode();
+        // spread the high bits, as hash maps do
+        return Math.floorMod(h ^ (h >>> 16), lanes.length);
+    }
+
+    /**
+     * Gets the number of events queued on a lane, not delivered yet.
+     * @param lane the lane index
+     * @return the queue depth
+     */
+    public long getQueueDepth(int lane) {
+        return lanes[lane].depth();
+    }
+
+    /**
+     * Gets the number of events delivered by a lane.
+     * @param lane the lane index
+     * @return the delivered count
+     */
+    public long getDeliveredCount(int lane) {
+        return lanes[lane].delivered;
+    }
+
+    /**
+     * Stops the lanes once their queued events are delivered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (StripeLane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+        }
+        for (StripeLane lane : lanes) {
+            try {
+                lane.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    void deliverSticky(EventCallback callback, EventObject<?> event) {
+        offer(event, new EventCallback[] {callback});
+    }
+
+    /**
+     * Queues an event for callbacks.
+     * @param event
+     * @param callings
+     */
+    private void offer(EventObject<?> event, EventCallback[] callings) {
+        if (closed) {
+            throw new IllegalStateException("Striped listeners closed");
+        }
+        lanes[getLane(keyExtractor.apply(event))].offer(new Delivery(event, callings));
+    }
+
+    /**
+     * An event with its callbacks.
+     */
+    private static final class Delivery {
+
+        /** The event. */
+        final EventObject<?> event;
+        /** The callbacks at fire time. */
+        final EventCallback[] callings;
+
+        /**
+         * Creates a new delivery.
+         * @param event
+         * @param callings
+         */
+        Delivery(EventObject<?> event, EventCallback[] callings) {
+            this.event = event;
+            this.callings = callings;
+        }
+    }
+
+    /**
+     * A lane and its thread.
+     */
+    private final class StripeLane implements Runnable {
+
+        /** Queued deliveries. */
+        private final MpscQueue<Delivery> queue = new MpscQueue<>();
+        /** Queued count. */
+        private final LongAdder offered = new LongAdder();
+        /** Delivered count, written by the lane thread only. */
+        private volatile long delivered;
+        /** Whether the lane thread waits for deliveries. */
+        private volatile boolean waiting;
+        /** The lane thread. */
+        private Thread thread;
+
+        /**
+         * Queues a delivery, from any thread.
+         * @param delivery
+         */
+        void offer(Delivery delivery) {
+            queue.offer(delivery);
+            offered.increment();
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Gets the queue depth.
+         * @return the count of deliveries not done
+         */
+        long depth() {
+            return Math.max(0, offered.sum() - delivered);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Delivery delivery = queue.poll();
+                if (delivery == null) {
+                    if (closed) {
+                        return;
+                    }
+                    // the publisher sees the flag after its offer, or we see its delivery
+                    waiting = true;
+                    delivery = queue.poll();
+                    if (delivery == null) {
+                        LockSupport.park(this);
+                        waiting = false;
+                        continue;
+                    }
+                    waiting = false;
+                }
+                deliver(delivery);
+                delivered = delivered + 1;
+            }
+        }
+
+        /**
+         * Sends an event to its callbacks, failures are logged.
+         * @param delivery
+         */
+        private void deliver(Delivery delivery) {
+            for (EventCallback callback : delivery.callings) {
+                try {
+                    send(callback, delivery.event);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Listener failure", ex);
+                }
+            }
+        }
+    }
+}
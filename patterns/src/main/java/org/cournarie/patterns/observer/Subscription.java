@@ -0,0 +1,26 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * A listener registration, as returned by {@link EventListeners#addListener}.
+ * <p>
+ * Closing it stops the delivery to this exact registration in constant time, without
+ * looking up the other listeners. It may be closed while events are fired: a call in
+ * progress completes, no new call starts once {@link #close()} returns.
+ */
+public interface Subscription extends AutoCloseable {
+
+    /**
+     * Removes the registration, does nothing if already removed.
+     */
+    @Override
+    void close();
+
+    /**
+     * Checks the registration still receives events.
+     * @return false once closed
+     */
+    boolean isActive();
+}
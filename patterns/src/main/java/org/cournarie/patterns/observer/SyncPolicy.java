@@ -0,0 +1,17 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * When the {@link EventJournal} forces its writes to the disk.
+ */
+public enum SyncPolicy {
+
+    /** After each append: nothing is lost, slowest. */
+    ALWAYS,
+    /** Once per group of appends, and on flush: the last group may be lost. */
+    GROUP,
+    /** Only on flush and close, the system writes back meanwhile. */
+    NEVER
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An event scheduled on a {@link TimingWheel}, as returned by
+ * {@link EventListeners#fireAfter}.
+ */
+public final class Timeout {
+
+    /** Waiting for its deadline. */
+    private static final int PENDING = 0;
+    /** Cancelled before its deadline. */
+    private static final int CANCELLED = 1;
+    /** Handed to its listeners. */
+    private static final int EXPIRED = 2;
+
+    /** The listeners to fire on. */
+    final EventListeners listeners;
+    /** The event. */
+    final EventObject<?> event;
+    /** The deadline, in wheel ticks. */
+    final long deadline;
+    /** The wheel. */
+    private final TimingWheel wheel;
+    /** The state. */
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    /** The bucket holding it, wheel thread only. */
+    TimingWheel.Bucket bucket;
+    /** The previous timeout of the bucket, wheel thread only. */
+    Timeout previous;
+    /** The next timeout of the bucket, wheel thread only. */
+    Timeout next;
+
+    /**
+     * Creates a new timeout.
+     * @param wheel
+     * @param listeners
+     * @param event
+     * @param deadline
+     */
+    Timeout(TimingWheel wheel, EventListeners listeners, EventObject<?> event, long deadline) {
+        this.wheel = wheel;
+        this.listeners = listeners;
+        this.event = event;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Cancels the delivery, unless already done.
+     * @return true if cancelled by this call
+     */
+    public boolean cancel() {
+        if (!state.compareAndSet(PENDING, CANCELLED)) {
+            return false;
+        }
+        wheel.cancelled(this);
+        return true;
+    }
+
+    /**
+     * Checks the delivery was cancelled.
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return state.get() == CANCELLED;
+    }
+
+    /**
+     * Checks the event was handed to its listeners.
+     * @return true once fired
+     */
+    public boolean isExpired() {
+        return state.get() == EXPIRED;
+    }
+
+    /**
+     * Gets the scheduled event.
+     * @return the event
+     */
+    public EventObject<?> getEvent() {
+        return event;
+    }
+
+    /**
+     * Marks the timeout expired.
+     * @return false if cancelled meanwhile
+     */
+    boolean expire() {
+        return state.compareAndSet(PENDING, EXPIRED);
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * A hierarchical hashed timing wheel firing scheduled events.
+ * <p>
+ * Time is cut in ticks. The first wheel has a bucket per tick over a wheel turn, each next
+ * wheel a bucket per turn of the previous one; a timeout goes to the bucket of its deadline
+ * on the finest wheel covering its delay, and moves down to a finer wheel when the wheel
+ * below completes a turn. Scheduling and cancelling are constant time whatever the number
+ * of pending timeouts: both only queue the timeout, lock-free, for the wheel thread which
+ * links or unlinks it from its bucket.
+ * <p>
+ * On each tick the wheel thread hands the expired events to their listeners with
+ * {@link EventListeners#fireEvents}, a batch per listeners; failures are logged. A wheel
+ * has one thread, events are fired late rather than early, by up to a tick.
+ */
+public final class TimingWheel implements AutoCloseable {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(TimingWheel.class);
+    /** Wheel counter. */
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    /** The tick duration, in ns. */
+    private final long tickNanos;
+    /** Bits of a wheel index. */
+    private final int bits;
+    /** Wheel index mask. */
+    private final int mask;
+    /** Buckets per wheel, finest wheel first. */
+    private final Bucket[][] wheels;
+    /** The wheel start, in ns. */
+    private final long start;
+    /** Timeouts to link. */
+    private final MpscQueue<Timeout> scheduled = new MpscQueue<>();
+    /** Timeouts to unlink. */
+    private final MpscQueue<Timeout> cancelled = new MpscQueue<>();
+    /** Pending timeout count. */
+    private final LongAdder pending = new LongAdder();
+    /** The wheel thread. */
+    private final Thread thread;
+    /** The current tick, wheel thread only. */
+    private long tick;
+    /** Whether closed. */
+    private volatile boolean closed;
+
+    /**
+     * Creates a new timing wheel and starts its thread.
+     * @param tick the tick duration
+     * @param unit the tick unit
+     * @param wheelSize the buckets per wheel, a power of 2
+     */
+    public TimingWheel(long tick, TimeUnit unit, int wheelSize) {
+        if (tick <= 0 || wheelSize < 2 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Positive tick and power of 2 wheel size expected");
+        }
+        tickNanos = unit.toNanos(tick);
+        bits = Integer.numberOfTrailingZeros(wheelSize);
+        mask = wheelSize - 1;
+        // enough wheels to cover any tick count
+        wheels = new Bucket[(Long.SIZE - 1 + bits - 1) / bits][wheelSize];
+        for (Bucket[] wheel : wheels) {
+            for (int i = 0; i < wheelSize; i++) {
+                wheel[i] = new Bucket();
+            }
+        }
+        start = System.nanoTime();
+        thread = new Thread(this::run, "timing-wheel-" + COUNTER.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the wheel shared by the listeners without their own, with a 1 ms tick.
+     * @return the shared wheel
+     */
+    static TimingWheel shared() {
+        return Shared.WHEEL;
+    }
+
+    /**
+     * Gets the number of timeouts neither fired nor cancelled.
+     * @return the pending count
+     */
+    public long getPendingCount() {
+        return pending.sum();
+    }
+
+    /**
+     * Stops the wheel thread, the pending events are not fired.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Schedules an event.
+     * @param listeners the listeners to fire on
+     * @param event
+     * @param delayNanos the delay, in ns
+     * @return the timeout
+     * @throws IllegalStateException if closed
+     */
+    Timeout schedule(EventListeners listeners, EventObject<?> event, long delayNanos) {
+        if (closed) {
+            throw new IllegalStateException("Timing wheel closed");
+        }
+        final long now = System.nanoTime() - start;
+        // clamped for the rounding not to overflow: a far delay never fires rather than at once
+        final long elapsed = now + Math.max(0, Math.min(delayNanos, Long.MAX_VALUE - now - tickNanos));
+        // round up: never fired early
+        final Timeout timeout = new Timeout(this, listeners, event, (elapsed + tickNanos - 1) / tickNanos);
+        pending.increment();
+        scheduled.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Queues a cancelled timeout for unlinking.
+     * @param timeout
+     */
+    void cancelled(Timeout timeout) {
+        pending.decrement();
+        cancelled.offer(timeout);
+    }
+
+    /**
+     * Runs the ticks, on the wheel thread.
+     */
+    private void run() {
+        final List<Timeout> expired = new ArrayList<>();
+        while (!closed) {
+            final long now = System.nanoTime() - start;
+            final long current = now / tickNanos;
+            if (current <= tick) {
+                LockSupport.parkNanos(this, (tick + 1) * tickNanos - now);
+                continue;
+            }
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+            while ((timeout = scheduled.poll()) != null) {
+                if (!timeout.isCancelled()) {
+                    place(timeout, expired);
+                }
+            }
+            while (tick < current) {
+                advance(expired);
+            }
+            fire(expired);
+            expired.clear();
+        }
+    }
+
+    /**
+     * Moves to the next tick, collecting the expired timeouts.
+     * @param expired the expired timeouts
+     */
+    private void advance(List<Timeout> expired) {
+        tick += 1;
+        // a completed turn brings the next wheel bucket down
+        for (int level = 1; level < wheels.length && (tick & ((1L << (level * bits)) - 1)) == 0; level++) {
+            final Bucket bucket = wheels[level][(int) (tick >>> (level * bits)) & mask];
+            for (Timeout timeout = bucket.clear(); timeout != null;) {
+                final Timeout next = timeout.next;
+                timeout.next = null;
+                place(timeout, expired);
+                timeout = next;
+            }
+        }
+        final Bucket due = wheels[0][(int) tick & mask];
+        for (Timeout timeout = due.clear(); timeout != null;) {
+            final Timeout next = timeout.next;
+            timeout.next = null;
+            place(timeout, expired);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Links a timeout to the bucket of its deadline, or collects it if due.
+     * @param timeout
+     * @param expired the expired timeouts
+     */
+    private void place(Timeout timeout, List<Timeout> expired) {
+        if (timeout.isCancelled()) {
+            return;
+        }
+        final long delta = timeout.deadline - tick;
+        if (delta <= 0) {
+            expired.add(timeout);
+            return;
+        }
+        int level = 0;
+        while (level < wheels.length - 1 && delta >>> ((level + 1) * bits) != 0) {
+            level += 1;
+        }
+        wheels[level][(int) (timeout.deadline >>> (level * bits)) & mask].add(timeout);
+    }
+
+    /**
+     * Fires the expired events, a batch per listeners.
+     * @param expired the expired timeouts
+     */
+    private void fire(List<Timeout> expired) {
+        if (expired.isEmpty()) {
+            return;
+        }
+        final Map<EventListeners, List<EventObject<?>>> batches = new IdentityHashMap<>();
+        for (Timeout timeout : expired) {
+            if (timeout.expire()) {
+                pending.decrement();
+                batches.computeIfAbsent(timeout.listeners, l -> new ArrayList<>()).add(timeout.event);
+            }
+        }
+        batches.forEach((listeners, events) -> {
+            try {
+                listeners.fireEvents(events);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Scheduled event delivery failed", ex);
+            }
+        });
+    }
+
+    /**
+     * The timeouts of a bucket, a doubly linked list.
+     */
+    static final class Bucket {
+
+        /** The first timeout. */
+        private Timeout head;
+        /** The last timeout. */
+        private Timeout tail;
+
+        /**
+         * Appends a timeout.
+         * @param timeout
+         */
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        /**
+         * Unlinks a timeout.
+         * @param timeout
+         */
+        void remove(Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Empties the bucket.
+         * @return the first timeout, the others following by their next link
+         */
+        Timeout clear() {
+            final Timeout first = head;
+            for (Timeout timeout = first; timeout != null; timeout = timeout.next) {
+                timeout.bucket = null;
+                timeout.previous = null;
+            }
+            head = null;
+            tail = null;
+            return first;
+        }
+    }
+
+    /**
+     * Lazy holder of the shared wheel.
+     */
+    private static final class Shared {
+
+        /** The shared wheel. */
+        static final TimingWheel WHEEL = new TimingWheel(1, TimeUnit.MILLISECONDS, 512);
+    }
+}
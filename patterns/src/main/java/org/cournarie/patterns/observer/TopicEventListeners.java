@@ -0,0 +1,131 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.reflect.Method;
+
+/**
+ * Event listeners with topic routing.
+ * <p>
+ * Besides the class based routing of {@link EventListeners}, listeners subscribe to topic
+ * patterns and events are published on a topic, as {@code orders.eu.fr.created}. In a
+ * pattern, {@code *} matches one level and {@code #} zero or more levels: {@code orders.eu.*}
+ * gets {@code orders.eu.fr} but not {@code orders.eu.fr.created}, {@code orders.#} gets
+ * both, and {@code orders} too.
+ * <p>
+ * A topic listener still only gets the events of its event type. The patterns are kept in
+ * an immutable {@link TopicIndex} published as the registry is, so publishing takes no
+ * lock, and the listeners of a topic are resolved once and cached.
+ */
+public class TopicEventListeners extends EventListeners {
+
+    /** Serializes topic index updates. */
+    private final Object topicLock = new Object();
+    /** Topic listener snapshot, never modified once published. */
+    private volatile TopicIndex topics = TopicIndex.EMPTY;
+
+    /**
+     * Creates a new topic event listeners.
+     */
+    public TopicEventListeners() {
+        super();
+    }
+
+    /**
+     * Adds a new listener on a topic pattern.
+     * @param pattern the topic pattern
+     * @param eventType
+     * @param object
+     * @param method
+     * @return the registration
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    public Subscription addListener(String pattern, Class<? extends EventObject> eventType, Object object,
+            Method method) {
+        return subscribe(pattern, new EventCallback(eventType, object, method));
+    }
+
+    /**
+     * Registers the {@link Subscribe} annotated methods of a listener on a topic pattern.
+     * @param pattern the topic pattern
+     * @param listener the listener
+     * @return the registration of all its handler methods
+     * @throws IllegalArgumentException if the pattern is invalid, the listener has no
+     *             handler, or an invalid one
+     */
+    public Subscription register(String pattern, Object listener) {
+        return subscribe(pattern, callbacks(listener, null));
+    }
+
+    /**
+     * Fires an event on a topic.
+     * <p>
+     * Only the topic listeners get it, not the class based ones.
+     * @param topic the topic, without wildcard
+     * @param event
+     * @throws IllegalArgumentException if the topic is invalid
+     */
+    public void fireEvent(String topic, EventObject<?> event) {
+        final EventCallback[] callings = topics.resolve(topic);
+        final Class<?> eventClass = event.getClass();
+        final DispatchMonitor monitor = getMonitor();
+        if (monitor != null) {
+            monitor.fired(eventClass);
+        }
+        for (EventCallback callback : callings) {
+            if (callback.accepts(eventClass)) {
+                send(callback, event);
+            }
+        }
+    }
+
+    /**
+     * Adds callbacks on a topic pattern.
+     * @param pattern
+     * @param callbacks
+     * @return the callbacks registration
+     */
+    private Subscription subscribe(String pattern, EventCallback... callbacks) {
+        synchronized (topicLock) {
+            topics = topics.add(pattern, callbacks);
+        }
+        return new TopicSubscription(pattern, callbacks);
+    }
+
+    /**
+     * The registration of callbacks on a topic pattern.
+     */
+    private final class TopicSubscription implements Subscription {
+
+        /** The topic pattern. */
+        private final String pattern;
+        /** The registered callbacks. */
+        private final EventCallback[] callbacks;
+
+        /**
+         * Creates a new subscription.
+         * @param pattern
+         * @param callbacks
+         */
+        private TopicSubscription(String pattern, EventCallback[] callbacks) {
+            this.pattern = pattern;
+            this.callbacks = callbacks;
+        }
+
+        @Override
+        public void close() {
+            synchronized (topicLock) {
+                for (EventCallback callback : callbacks) {
+                    cancel(callback);
+                }
+                topics = topics.remove(pattern, callbacks);
+            }
+        }
+
+        @Override
+        public boolean isActive() {
+            return !callbacks[0].isCancelled();
+        }
+    }
+}
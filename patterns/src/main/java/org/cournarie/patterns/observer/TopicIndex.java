@@ -0,0 +1,292 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable trie of topic patterns with its resolution cache.
+ * <p>
+ * Topics are dot separated levels, as {@code orders.eu.fr.created}. In a pattern, a
+ * {@code *} level matches exactly one level and a {@code #} level matches zero or more
+ * levels. A topic is resolved walking the trie level by level, so the cost depends on the
+ * topic depth, not on the number of patterns; each resolved topic is then cached.
+ * <p>
+ * Changes copy the nodes along the pattern path only and create a new index, hence a new
+ * empty cache, as {@link Registry} does.
+ */
+final class TopicIndex {
+
+    /** Matches one level. */
+    static final String ANY = "*";
+    /** Matches zero or more levels. */
+    static final String ALL = "#";
+    /** The empty index. */
+    static final TopicIndex EMPTY = new TopicIndex(Node.EMPTY, 0);
+    /** The most topics cached, beyond resolution is not cached. */
+    private static final int MAX_CACHED = 4096;
+
+    /** The root node. */
+    private final Node root;
+    /** Number of callbacks. */
+    private final int size;
+    /** Callbacks by topic. */
+    private final ConcurrentMap<String, EventCallback[]> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new index.
+     * @param root
+     * @param size
+     */
+    private TopicIndex(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Gets the number of callbacks.
+     * @return the callback count
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the callbacks of the patterns matching a topic.
+     * @param topic the topic, without wildcard
+     * @return the callbacks, exact levels before wildcards, must not be modified
+     * @throws IllegalArgumentException if the topic is invalid
+     */
+    EventCallback[] resolve(String topic) {
+        EventCallback[] matching = cache.get(topic);
+        if (matching == null) {
+            final String[] levels = levels(topic, false);
+            if (size == 0) {
+                return Registry.NONE;
+            }
+            final Set<EventCallback> found = new LinkedHashSet<>();
+            collect(root, levels, 0, found);
+            matching = found.isEmpty() ? Registry.NONE : found.toArray(Registry.NONE);
+            if (cache.size() < MAX_CACHED) {
+                final EventCallback[] previous = cache.putIfAbsent(topic, matching);
+                if (previous != null) {
+                    matching = previous;
+                }
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Creates an index with more callbacks on a pattern.
+     * @param pattern the topic pattern
+     * @param added the callbacks
+     * @return the new index
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    TopicIndex add(String pattern, EventCallback... added) {
+        return new TopicIndex(root.add(levels(pattern, true), 0, added), size + added.length);
+    }
+
+    /**
+     * Creates an index without some callbacks of a pattern.
+     * @param pattern the topic pattern
+     * @param removed the callbacks
+     * @return the new index, or this one if nothing is removed
+     */
+    TopicIndex remove(String pattern, EventCallback... removed) {
+        final Node updated = root.remove(levels(pattern, true), 0, removed);
+        if (updated == root) {
+            return this;
+        }
+        return new TopicIndex(updated == null ? Node.EMPTY : updated, updated == null ? 0 : updated.count());
+    }
+
+    /**
+     * Collects the callbacks of the patterns matching the topic levels from a node.
+     * @param node the current node
+     * @param levels the topic levels
+     * @param index the first level to match
+     * @param found the callbacks found
+     */
+    private static void collect(Node node, String[] levels, int index, Set<EventCallback> found) {
+        if (index == levels.length) {
+            Collections.addAll(found, node.callbacks);
+        } else {
+            final Node exact = node.children.get(levels[index]);
+            if (exact != null) {
+                collect(exact, levels, index + 1, found);
+            }
+            final Node any = node.children.get(ANY);
+            if (any != null) {
+                collect(any, levels, index + 1, found);
+            }
+        }
+        final Node all = node.children.get(ALL);
+        if (all != null) {
+            // # takes zero to all the remaining levels
+            for (int i = index; i <= levels.length; i++) {
+                collect(all, levels, i, found);
+            }
+        }
+    }
+
+    /**
+     * Splits a topic or a pattern into levels.
+     * @param topic
+     * @param pattern true if wildcards are allowed
+     * @return the levels
+     * @throws IllegalArgumentException if a level is empty, or an unexpected wildcard
+     */
+    static String[] levels(String topic, boolean pattern) {
+        if (topic == null || topic.isEmpty()) {
+            throw new IllegalArgumentException("Empty topic");
+        }
+        final String[] levels = topic.split("\\.", -1);
+        for (String level : levels) {
+            if (level.isEmpty()) {
+                throw new IllegalArgumentException("Empty level in topic " + topic);
+            }
+            final boolean wildcard = ANY.equals(level) || ALL.equals(level);
+            if (!wildcard && (level.contains(ANY) || level.contains(ALL))
+                    || wildcard && !pattern) {
+                throw new IllegalArgumentException("Unexpected wildcard in topic " + topic);
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * An immutable trie node.
+     */
+    private static final class Node {
+
+        /** The empty node. */
+        static final Node EMPTY = new Node(Collections.<String, Node>emptyMap(), Registry.NONE);
+
+        /** Child nodes by level. */
+        final Map<String, Node> children;
+        /** Callbacks of the pattern ending here. */
+        final EventCallback[] callbacks;
+
+        /**
+         * Creates a new node.
+         * @param children
+         * @param callbacks
+         */
+        Node(Map<String, Node> children, EventCallback[] callbacks) {
+            this.children = children;
+            this.callbacks = callbacks;
+        }
+
+        /**
+         * Creates a node with more callbacks down a path.
+         * @param levels the pattern levels
+         * @param index the level of this node
+         * @param added
+         * @return the new node
+         */
+        Node add(String[] levels, int index, EventCallback[] added) {
+            if (index == levels.length) {
+                final EventCallback[] updated = Arrays.copyOf(callbacks, callbacks.length + added.length);
+                System.arraycopy(added, 0, updated, callbacks.length, added.length);
+                return new Node(children, updated);
+            }
+            final Node child = children.getOrDefault(levels[index], EMPTY);
+            return new Node(with(levels[index], child.add(levels, index + 1, added)), callbacks);
+        }
+
+        /**
+         * Creates a node without some callbacks down a path.
+         * @param levels the pattern levels
+         * @param index the level of this node
+         * @param removed
+         * @return the new node, this one if unchanged, null if empty
+         */
+        Node remove(String[] levels, int index, EventCallback[] removed) {
+            if (index == levels.length) {
+                final EventCallback[] updated = new EventCallback[callbacks.length];
+                int count = 0;
+                for (EventCallback callback : callbacks) {
+                    if (!contains(removed, callback)) {
+                        updated[count++] = callback;
+                    }
+                }
+                if (count == callbacks.length) {
+                    return this;
+                }
+                return prune(children, count == 0 ? Registry.NONE : Arrays.copyOf(updated, count));
+            }
+            final Node child = children.get(levels[index]);
+            if (child == null) {
+                return this;
+            }
+            final Node updated = child.remove(levels, index + 1, removed);
+            if (updated == child) {
+                return this;
+            }
+            return prune(with(levels[index], updated), callbacks);
+        }
+
+        /**
+         * Gets the total number of callbacks under this node.
+         * @return the callback count
+         */
+        int count() {
+            int count = callbacks.length;
+            for (Node child : children.values()) {
+                count += child.count();
+            }
+            return count;
+        }
+
+        /**
+         * Copies the children, with a replaced child.
+         * @param level
+         * @param child the new child, null to remove it
+         * @return the new children
+         */
+        private Map<String, Node> with(String level, Node child) {
+            final Map<String, Node> updated = new HashMap<>(children);
+            if (child == null) {
+                updated.remove(level);
+            } else {
+                updated.put(level, child);
+            }
+            return updated.isEmpty() ? Collections.<String, Node>emptyMap() : updated;
+        }
+
+        /**
+         * Creates a node, null if empty.
+         * @param children
+         * @param callbacks
+         * @return the node
+         */
+        private static Node prune(Map<String, Node> children, EventCallback[] callbacks) {
+            return children.isEmpty() && callbacks.length == 0 ? null : new Node(children, callbacks);
+        }
+
+        /**
+         * Whether an array holds a callback.
+         * @param callbacks
+         * @param callback
+         * @return true if found, by identity
+         */
+        private static boolean contains(EventCallback[] callbacks, EventCallback callback) {
+            for (EventCallback c : callbacks) {
+                if (c == callback) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Event listeners calling each listener on a thread of its own, for blocking listeners.
+ * <p>
+ * Every invocation runs on a new virtual thread on Java 21, on a pooled platform thread
+ * before: a listener doing I/O neither holds the publisher nor the other listeners. The
+ * invocations of a listener are concurrent and unordered, up to its concurrency limit;
+ * the invocations over the limit wait for a permit on their own thread. Before Java 21, the
+ * platform threads are bounded, see {@link VirtualThreads}.
+ */
+public class VirtualEventListeners extends EventListeners {
+
+    /** The concurrency limit of each handler registered without one, 0 for none. */
+    private final int concurrency;
+    /** Permits of the limited callbacks. */
+    private final ConcurrentMap<EventCallback, Semaphore> permits = new ConcurrentHashMap<>();
+    /** Started invocations not done yet. */
+    private final LongAdder inFlight = new LongAdder();
+
+    /**
+     * Creates new listeners without concurrency limit.
+     */
+    public VirtualEventListeners() {
+        this(0);
+    }
+
+    /**
+     * Creates new listeners.
+     * @param concurrency the concurrency limit of each handler registered without one, 0 for none
+     */
+    public VirtualEventListeners(int concurrency) {
+        if (concurrency < 0) {
+            throw new IllegalArgumentException("Negative concurrency: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Checks invocations run on virtual threads, from Java 21.
+     * @return true if virtual
+     */
+    public static boolean isVirtual() {
+        return VirtualThreads.isVirtual();
+    }
+
+    /**
+     * Registers the annotated methods of a listener, with a concurrency limit shared by its
+     * handlers.
+     * @param listener
+     * @param concurrency the most invocations of the listener running at once
+     * @return the subscription of the listener methods
+     */
+    public Subscription register(Object listener, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+        }
+        final EventCallback[] callbacks = callbacks(listener, null);
+        final Semaphore semaphore = new Semaphore(concurrency);
+        for (EventCallback callback : callbacks) {
+            permits.put(callback, semaphore);
+        }
+        return subscribe(callbacks);
+    }
+
+    /**
+     * Gets the number of invocations started and not done yet, waiting ones included.
+     * @return the in flight count
+     */
+    public long getInFlightCount() {
+        return inFlight.sum();
+    }
+
+    @Override
+    void pruned() {
+        // removed callbacks are cancelled, by Subscription.close or removeListener
+        permits.keySet().removeIf(EventCallback::isCancelled);
+    }
+
+    @Override
+    void deliverSticky(EventCallback callback, EventObject<?> event) {
+        start(callback, () -> super.deliverSticky(callback, event), new CompletableFuture<>());
+    }
+
+    /**
+     * Fires an event without waiting for the listeners.
+     * @param event
+     * @throws IllegalArgumentException if the event is pooled
+     */
+    @Override
+    public void fireEvent(EventObject<?> event) {
+        fireEventAsync(event);
+    }
+
+    /**
+     * Not supported: delivery is deferred, the event would be released before use.
+     * @param event
+     */
+    @Override
+    public void fireAndRelease(PooledEvent<?> event) {
+        throw new UnsupportedOperationException("Pooled events need synchronous delivery");
+    }
+
+    /**
+     * Fires a batch of events without waiting for the listeners.
+     * <p>
+     * Each event is a separate invocation, batch listeners get them as lists of one event.
+     * @param events
+     */
+    @Override
+    public void fireEvents(Collection<? extends EventObject<?>> events) {
+        events.forEach(this::fireEvent);
+    }
+
+    /**
+     * Fires an event.
+     * <p>
+     * The future fails with the first {@link EventCallback.MethodException} raised, once
+     * every listener has run.
+     * @param event
+     * @return a future completed when every listener has been called
+     * @throws IllegalArgumentException if the event is pooled
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Void> fireEventAsync(EventObject<?> event) {
+        checkDeferrable(event);
+        final EventCallback[] callings = dispatch(event);
+        if (callings.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void>[] calls = new CompletableFuture[callings.length];
+        for (int i = 0; i < callings.length; i++) {
+            final EventCallback callback = callings[i];
+            final CompletableFuture<Void> call = new CompletableFuture<>();
+            start(callback, () -> send(callback, event), call);
+            calls[i] = call;
+        }
+        return calls.length == 1 ? calls[0] : CompletableFuture.allOf(calls);
+    }
+
+    /**
+     * Starts an invocation on its own thread, once a permit of its callback is available.
+     * @param callback
+     * @param invocation
+     * @param call completed with the outcome
+     */
+    private void start(EventCallback callback, Runnable invocation, CompletableFuture<Void> call) {
+        final Semaphore semaphore = semaphore(callback);
+        inFlight.increment();
+        VirtualThreads.start(() -> {
+            Exception failure = null;
+            try {
+                if (semaphore != null) {
+                    semaphore.acquire();
+                }
+                try {
+                    invocation.run();
+                } catch (RuntimeException ex) {
+                    failure = ex;
+                } finally {
+                    if (semaphore != null) {
+                        semaphore.release();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failure = ex;
+            } finally {
+                inFlight.decrement();
+            }
+            // done before the future completes, for its waiters
+            if (failure == null) {
+                call.complete(null);
+            } else {
+                call.completeExceptionally(failure);
+            }
+        });
+    }
+
+    /**
+     * Gets the permits of a callback.
+     * @param callback
+     * @return the permits, null if not limited
+     */
+    private Semaphore semaphore(EventCallback callback) {
+        final Semaphore semaphore = permits.get(callback);
+        if (semaphore != null || concurrency == 0 || callback.isCancelled()) {
+            // a removed callback ignores the event, it needs no permit
+            return semaphore;
+        }
+        return permits.computeIfAbsent(callback, c -> new Semaphore(concurrency));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the invocations of {@link VirtualEventListeners}, a thread per task.
+ * <p>
+ * This version, for Java 8 to 20, runs the tasks on at most {@link #MAX_WORKERS} daemon
+ * platform threads: a blocked listener holds a thread, the tasks beyond the limit wait in
+ * an unbounded queue, including those which would only wait for a concurrency permit. The
+ * multi-release jar holds a Java 21 version starting a virtual thread per task.
+ */
+final class VirtualThreads {
+
+    /** The most worker threads. */
+    static final int MAX_WORKERS = 256;
+    /** Thread counter. */
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    /** The worker threads, stopped after a minute idle. */
+    private static final Executor WORKERS = workers();
+
+    /**
+     * Not instantiable.
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Creates the worker pool.
+     * @return the pool
+     */
+    private static Executor workers() {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(), task -> {
+                    final Thread thread = new Thread(task, "event-worker-" + COUNTER.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Checks tasks run on virtual threads.
+     * @return false, platform threads
+     */
+    static boolean isVirtual() {
+        return false;
+    }
+
+    /**
+     * Runs a task on its own thread.
+     * @param task
+     */
+    static void start(Runnable task) {
+        WORKERS.execute(task);
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+/**
+ * How a {@link RingBufferEventBus} thread waits for a sequence: the consumer for the next
+ * event, the producers for a free slot.
+ */
+public enum WaitStrategy {
+
+    /** Spins on the sequence, lowest latency, burns a core. */
+    BUSY_SPIN,
+    /** Yields the core between checks. */
+    YIELD,
+    /** The consumer sleeps until signaled, producers park; lowest CPU use. */
+    BLOCKING
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the invocations of {@link VirtualEventListeners}, a virtual thread per task.
+ * <p>
+ * The Java 21 version of the class, from the multi-release jar: a blocked listener only
+ * parks its virtual thread, its carrier thread runs the others.
+ */
+final class VirtualThreads {
+
+    /** The virtual thread factory. */
+    private static final ThreadFactory FACTORY = Thread.ofVirtual().name("event-worker-", 1).factory();
+
+    /**
+     * Not instantiable.
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Checks tasks run on virtual threads.
+     * @return true
+     */
+    static boolean isVirtual() {
+        return true;
+    }
+
+    /**
+     * Runs a task on its own thread.
+     * @param task
+     */
+    static void start(Runnable task) {
+        FACTORY.newThread(task).start();
+    }
+}
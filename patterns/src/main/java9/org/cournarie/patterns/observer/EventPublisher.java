@@ -0,0 +1,271 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link Flow.Publisher} of the events of a type fired on some listeners.
+ * <p>
+ * Each subscriber gets a listener of its own and a bounded buffer: fired events wait there
+ * until the subscriber requests them, and the {@link OverflowPolicy} tells what happens to
+ * the publisher once the buffer is full. Events are sent by the thread firing them, or by
+ * the thread requesting them, one at a time. With {@link OverflowPolicy#BLOCK}, the
+ * subscriber must request from another thread than the publisher's.
+ * <p>
+ * Buffered events are sent after the firing returns, so pooled events are not accepted.
+ * <p>
+ * Closing the publisher unregisters the listeners of the subscribers, then completes them
+ * once their buffered events are sent.
+ * @param <E> the event type
+ */
+public class EventPublisher<E extends EventObject<?>> implements Flow.Publisher<E>, AutoCloseable {
+
+    /** The buffering method of a subscription. */
+    private static final Method OFFER;
+
+    static {
+        try {
+            OFFER = DemandSubscription.class.getDeclaredMethod("offer", EventObject.class);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** The listeners firing the events. */
+    private final EventListeners listeners;
+    /** The event type. */
+    private final Class<E> eventType;
+    /** The buffer capacity of a subscriber. */
+    private final int capacity;
+    /** What to do when a buffer is full. */
+    private final OverflowPolicy overflow;
+    /** The active subscriptions. */
+    private final Set<DemandSubscription<E>> subscriptions = ConcurrentHashMap.newKeySet();
+    /** Whether closed. */
+    private volatile boolean closed;
+
+    /**
+     * Creates a new publisher.
+     * @param listeners the listeners firing the events
+     * @param eventType the event type
+     * @param capacity the buffer capacity of a subscriber
+     * @param overflow what to do when a buffer is full
+     * @throws IllegalArgumentException if the event type is pooled
+     */
+    public EventPublisher(EventListeners listeners, Class<E> eventType, int capacity, OverflowPolicy overflow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        if (PooledEvent.class.isAssignableFrom(eventType)) {
+            throw new IllegalArgumentException("Pooled events need synchronous delivery: " + eventType.getName());
+        }
+        this.listeners = listeners;
+        this.eventType = eventType;
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super E> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        final DemandSubscription<E> subscription = new DemandSubscription<>(this, subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        subscription.registration = listeners.addListener(eventType, subscription, OFFER);
+        if (closed || subscription.cancelled) {
+            subscription.registration.close();
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Unregisters the listeners of the subscribers, then completes them once their buffered
+     * events are sent.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        subscriptions.forEach(subscription -> {
+            subscription.unregister();
+            subscription.complete();
+        });
+    }
+
+    /**
+     * A subscriber demand and buffer.
+     * @param <E> the event type
+     */
+    static final class DemandSubscription<E extends EventObject<?>> implements Flow.Subscription {
+
+        /** The publisher. */
+        private final EventPublisher<E> publisher;
+        /** The subscriber. */
+        private final Flow.Subscriber<? super E> subscriber;
+        /** Buffered events, guarded by this. */
+        private final ArrayDeque<E> buffer = new ArrayDeque<>();
+        /** Requested events not sent yet. */
+        private final AtomicLong demand = new AtomicLong();
+        /** Pending drain requests, the drain runs while not zero. */
+        private final AtomicInteger wip = new AtomicInteger();
+        /** Dropped events. */
+        private final AtomicLong dropped = new AtomicLong();
+        /** The listener registration. */
+        private volatile Subscription registration;
+        /** Whether no more signal is sent. */
+        private volatile boolean cancelled;
+        /** Whether completion is requested. */
+        private volatile boolean completed;
+        /** A pending error. */
+        private volatile Throwable error;
+
+        /**
+         * Creates a new subscription.
+         * @param publisher
+         * @param subscriber
+         */
+        DemandSubscription(EventPublisher<E> publisher, Flow.Subscriber<? super E> subscriber) {
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non positive request: " + n);
+            } else {
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            unregister();
+            synchronized (this) {
+                buffer.clear();
+                notifyAll();
+            }
+            publisher.subscriptions.remove(this);
+        }
+
+        /**
+         * Gets the number of dropped events.
+         * @return the dropped count
+         */
+        long getDropCount() {
+            return dropped.get();
+        }
+
+        /**
+         * Buffers an event, as a listener.
+         * @param event
+         * @throws IllegalArgumentException if the event is pooled, it would be recycled before sent
+         * @throws IllegalStateException with the {@link OverflowPolicy#FAIL} policy, if the buffer is full
+         */
+        @SuppressWarnings("unchecked")
+        void offer(EventObject<?> event) {
+            if (event instanceof PooledEvent) {
+                throw new IllegalArgumentException("Pooled events need synchronous delivery: " + event);
+            }
+            synchronized (this) {
+                if (buffer.size() >= publisher.capacity && !cancelled) {
+                    switch (publisher.overflow) {
+                        case BLOCK:
+                            while (buffer.size() >= publisher.capacity && !cancelled) {
+                                try {
+                                    wait();
+                                } catch (InterruptedException ex) {
+                                    Thread.currentThread().interrupt();
+                                    dropped.incrementAndGet();
+                                    return;
+                                }
+                            }
+                            break;
+                        case DROP_NEWEST:
+                            dropped.incrementAndGet();
+                            return;
+                        case DROP_OLDEST:
+                            buffer.poll();
+                            dropped.incrementAndGet();
+                            break;
+                        default:
+                            throw new IllegalStateException("Subscriber buffer full, capacity " + publisher.capacity);
+                    }
+                }
+                if (cancelled) {
+                    return;
+                }
+                buffer.add((E) event);
+            }
+            drain();
+        }
+
+        /**
+         * Stops buffering the fired events.
+         */
+        void unregister() {
+            final Subscription listener = registration;
+            if (listener != null) {
+                listener.close();
+            }
+        }
+
+        /**
+         * Requests completion once the buffer is sent.
+         */
+        void complete() {
+            completed = true;
+            drain();
+        }
+
+        /**
+         * Sends the buffered events as demanded, one thread at a time.
+         */
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (!cancelled && error == null && demand.get() > 0) {
+                    final E event;
+                    synchronized (this) {
+                        event = buffer.poll();
+                        notifyAll();
+                    }
+                    if (event == null) {
+                        break;
+                    }
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    subscriber.onNext(event);
+                }
+                if (!cancelled && error != null) {
+                    cancel();
+                    subscriber.onError(error);
+                } else if (!cancelled && completed && isEmpty()) {
+                    cancel();
+                    subscriber.onComplete();
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        /**
+         * Checks the buffer is empty.
+         * @return true if empty
+         */
+        private synchronized boolean isEmpty() {
+            return buffer.isEmpty();
+        }
+    }
+}
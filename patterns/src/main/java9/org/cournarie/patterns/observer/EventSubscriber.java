@@ -0,0 +1,106 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.concurrent.Flow;
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link Flow.Subscriber} firing the received events on some listeners.
+ * <p>
+ * It requests a batch of events, then half a batch each time half a batch is fired, so the
+ * upstream never has more than a batch in flight. A listener failure cancels the
+ * subscription.
+ */
+public class EventSubscriber implements Flow.Subscriber<EventObject<?>> {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(EventSubscriber.class);
+
+    /** The listeners to fire on. */
+    private final EventListeners listeners;
+    /** The most events requested at once. */
+    private final int batch;
+    /** The events fired before requesting more. */
+    private final int limit;
+    /** The upstream subscription. */
+    private Flow.Subscription subscription;
+    /** Events fired since the last request. */
+    private int consumed;
+    /** Fired event count. */
+    private volatile long received;
+    /** Whether the upstream is done. */
+    private volatile boolean done;
+
+    /**
+     * Creates a new subscriber.
+     * @param listeners the listeners to fire on
+     * @param batch the most events requested at once
+     */
+    public EventSubscriber(EventListeners listeners, int batch) {
+        if (batch < 1) {
+            throw new IllegalArgumentException("Batch must be positive: " + batch);
+        }
+        this.listeners = listeners;
+        this.batch = batch;
+        limit = Math.max(1, batch / 2);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        if (subscription != null) {
+            s.cancel();
+            return;
+        }
+        subscription = s;
+        s.request(batch);
+    }
+
+    @Override
+    public void onNext(EventObject<?> event) {
+        if (done) {
+            return;
+        }
+        try {
+            listeners.fireEvent(event);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Listener failure, subscription cancelled", ex);
+            done = true;
+            subscription.cancel();
+            return;
+        }
+        received += 1;
+        if (++consumed == limit) {
+            consumed = 0;
+            subscription.request(limit);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        LOGGER.error("Upstream failure", throwable);
+        done = true;
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+    }
+
+    /**
+     * Gets the number of fired events.
+     * @return the received count
+     */
+    public long getReceivedCount() {
+        return received;
+    }
+
+    /**
+     * Checks the upstream is done, or the subscription cancelled.
+     * @return true once done
+     */
+    public boolean isDone() {
+        return done;
+    }
+}
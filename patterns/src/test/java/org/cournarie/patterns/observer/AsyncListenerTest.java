@@ -0,0 +1,220 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.cournarie.patterns.observer.EventCallback.MethodException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Asynchronous delivery.
+ */
+public class AsyncListenerTest {
+
+    /** How many events are sent. */
+    private static final int EVENT_COUNT = 1000;
+    /** Thread pool. */
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testOrderedDelivery() throws Exception {
+        AsyncEventListeners listeners = new AsyncEventListeners(pool);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        listeners.addListener(Numbered.class, first, Recorder.RECORD);
+        listeners.addListener(Numbered.class, second, Recorder.RECORD);
+
+        CompletableFuture<Void> last = null;
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            last = listeners.fireEventAsync(new Numbered(this, i));
+        }
+        last.get(30, TimeUnit.SECONDS);
+
+        // the last event is the last delivered, everyone got them all in order
+        for (Recorder r : new Recorder[]{first, second}) {
+            Assert.assertEquals(EVENT_COUNT, r.received.size());
+            for (int i = 0; i < EVENT_COUNT; i++) {
+                Assert.assertEquals(i, (int) r.received.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSlowListener() throws Exception {
+        AsyncEventListeners listeners = new AsyncEventListeners(pool);
+        Blocker blocker = new Blocker();
+        Recorder recorder = new Recorder();
+        listeners.addListener(Numbered.class, blocker, Blocker.BLOCK);
+        listeners.addListener(Numbered.class, recorder, Recorder.RECORD);
+
+        // the publisher does not wait for the blocked listener, the other one is served
+        CompletableFuture<Void> done = listeners.fireEventAsync(new Numbered(this, 1));
+        Assert.assertFalse(done.isDone());
+        listeners.fireEventAsync(new Numbered(this, 2));
+        while (recorder.size() < 2) {
+            Thread.sleep(1);
+        }
+        Assert.assertFalse(done.isDone());
+
+        blocker.latch.countDown();
+        done.get(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testRemoveQueued() throws Exception {
+        AsyncEventListeners listeners = new AsyncEventListeners(pool);
+        Blocker blocker = new Blocker();
+        listeners.addListener(Numbered.class, blocker, Blocker.BLOCK);
+        CompletableFuture<Void> first = listeners.fireEventAsync(new Numbered(this, 1));
+        CompletableFuture<Void> second = listeners.fireEventAsync(new Numbered(this, 2));
+        while (blocker.calls.get() == 0) {
+            Thread.sleep(1);
+        }
+
+        // the removed listener does not get its queued event
+        listeners.removeListener(Numbered.class, blocker, Blocker.BLOCK);
+        blocker.latch.countDown();
+        first.get(30, TimeUnit.SECONDS);
+        second.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(1, blocker.calls.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        AsyncEventListeners listeners = new AsyncEventListeners(pool);
+        listeners.addListener(Numbered.class, new Recorder(), Recorder.FAIL);
+        try {
+            listeners.fireEventAsync(new Numbered(this, 1)).get(30, TimeUnit.SECONDS);
+            Assert.fail("Exception should have be raised...");
+        } catch (ExecutionException exc) {
+            Assert.assertTrue(exc.getCause() instanceof MethodException);
+        }
+        // no listener, nothing to wait for
+        Assert.assertTrue(new AsyncEventListeners(pool).fireEventAsync(new Numbered(this, 1)).isDone());
+    }
+
+    @Test
+    public void testFailureLogged() throws Exception {
+        AsyncEventListeners listeners = new AsyncEventListeners(pool);
+        listeners.addListener(Numbered.class, new Recorder(), Recorder.FAIL);
+        List<LoggingEvent> logged = new CopyOnWriteArrayList<>();
+        AppenderSkeleton appender = new AppenderSkeleton() {
+            @Override
+            protected void append(LoggingEvent event) {
+                logged.add(event);
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean requiresLayout() {
+                return false;
+            }
+        };
+        Logger logger = Logger.getLogger(AsyncEventListeners.class);
+        logger.addAppender(appender);
+        try {
+            listeners.fireEvent(new Numbered(this, 1));
+            for (int i = 0; i < 3000 && logged.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            logger.removeAppender(appender);
+        }
+        Assert.assertEquals(1, logged.size());
+        Assert.assertTrue(logged.get(0).getThrowableInformation().getThrowable() instanceof MethodException);
+    }
+
+    /**
+     * A numbered event.
+     */
+    public static class Numbered extends EventObject<AsyncListenerTest> {
+
+        /** Event number. */
+        private final int number;
+
+        Numbered(AsyncListenerTest src, int number) {
+            super(src);
+            this.number = number;
+        }
+    }
+
+    /**
+     * Records event numbers.
+     */
+    public static class Recorder {
+
+        static final Method RECORD;
+        static final Method FAIL;
+
+        static {
+            try {
+                RECORD = Recorder.class.getDeclaredMethod("record", new Class[]{Numbered.class});
+                FAIL = Recorder.class.getDeclaredMethod("fail", new Class[]{Numbered.class});
+            } catch (final java.lang.NoSuchMethodException e) {
+                throw new java.lang.RuntimeException("Internal error", e);
+            }
+        }
+
+        private final List<Integer> received = new ArrayList<>();
+
+        public synchronized void record(Numbered evt) {
+            received.add(evt.number);
+        }
+
+        public void fail(Numbered evt) {
+            throw new IllegalStateException("fail");
+        }
+
+        synchronized int size() {
+            return received.size();
+        }
+    }
+
+    /**
+     * Waits to be released.
+     */
+    public static class Blocker {
+
+        static final Method BLOCK;
+
+        static {
+            try {
+                BLOCK = Blocker.class.getDeclaredMethod("block", new Class[]{Numbered.class});
+            } catch (final java.lang.NoSuchMethodException e) {
+                throw new java.lang.RuntimeException("Internal error", e);
+            }
+        }
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private final AtomicInteger calls = new AtomicInteger();
+
+        public void block(Numbered evt) throws InterruptedException {
+            calls.incrementAndGet();
+            latch.await();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Latest value wins delivery.
+ */
+public class ConflatingListenerTest {
+
+    /** Thread pool. */
+    private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testConflation() throws Exception {
+        ConflatingEventListeners listeners = new ConflatingEventListeners(pool, EventObject::getSource);
+        PriceBoard board = new PriceBoard();
+        ConflatingSubscription s = listeners.register(board);
+
+        // the board is stuck on the first price
+        listeners.fireEvent(new Price("EUR", 1));
+        board.entered.await(30, TimeUnit.SECONDS);
+        for (int i = 2; i <= 10; i++) {
+            listeners.fireEvent(new Price("EUR", i));
+            listeners.fireEvent(new Price("USD", i));
+        }
+        Assert.assertEquals(2, s.getPendingCount());
+        Assert.assertEquals(16, s.getConflatedCount());
+
+        // only the latest one per key is delivered, in first offer order
+        board.open.countDown();
+        for (int i = 0; i < 3000 && board.size() < 3; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("EUR=1", board.get(0));
+        Assert.assertEquals("EUR=10", board.get(1));
+        Assert.assertEquals("USD=10", board.get(2));
+        Assert.assertEquals(0, s.getPendingCount());
+    }
+
+    /**
+     * A price update, keyed by currency.
+     */
+    public static class Price extends EventObject<String> {
+
+        private final int value;
+
+        Price(String currency, int value) {
+            super(currency);
+            this.value = value;
+        }
+    }
+
+    /**
+     * Displays prices, blocks until opened.
+     */
+    public static class PriceBoard {
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch open = new CountDownLatch(1);
+        private final List<String> shown = new ArrayList<>();
+
+        @Subscribe
+        public void show(Price price) throws InterruptedException {
+            entered.countDown();
+            open.await();
+            synchronized (shown) {
+                shown.add(price.getSource() + "=" + price.value);
+            }
+        }
+
+        int size() {
+            synchronized (shown) {
+                return shown.size();
+            }
+        }
+
+        String get(int i) {
+            synchronized (shown) {
+                return shown.get(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.cournarie.patterns.observer.DispatchMonitor.ListenerSnapshot;
+import org.cournarie.patterns.observer.DispatchMonitor.Snapshot;
+import org.cournarie.patterns.observer.EventCallback.MethodException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Dispatch instrumentation.
+ */
+public class DispatchMonitorTest {
+
+    @Test
+    public void testMonitor() throws Exception {
+        EventListeners listeners = new EventListeners();
+        Assert.assertNull(listeners.getMonitor());
+        Worker worker = new Worker();
+        listeners.register(worker);
+        DispatchMonitor monitor = new DispatchMonitor(1, TimeUnit.MILLISECONDS);
+        listeners.setMonitor(monitor);
+        Assert.assertSame(monitor, listeners.getMonitor());
+
+        listeners.fireEvent(new Fast(this));
+        listeners.fireEvents(Arrays.asList(new Fast(this), new Slow(this)));
+        try {
+            listeners.fireEvent(new Broken(this));
+            Assert.fail("Exception should have be raised...");
+        } catch (MethodException exc) {
+            // this one is expected
+        }
+
+        Snapshot snapshot = monitor.snapshot();
+        Assert.assertEquals(2L, (long) snapshot.getEventCounts().get(Fast.class));
+        Assert.assertEquals(1L, (long) snapshot.getEventCounts().get(Slow.class));
+        ListenerSnapshot fast = snapshot.getListener(Worker.class.getDeclaredMethod("fast", Fast.class));
+        Assert.assertEquals(2, fast.getCallCount());
+        Assert.assertEquals(2, Arrays.stream(fast.getHistogram()).sum());
+        ListenerSnapshot slow = snapshot.getListener(Worker.class.getDeclaredMethod("slow", Slow.class));
+        Assert.assertTrue(slow.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+        Assert.assertTrue(slow.getPercentileNanos(99) >= slow.getMaxNanos());
+        Assert.assertTrue(snapshot.getSlowCount() >= 1);
+        ListenerSnapshot broken = snapshot.getListener(Worker.class.getDeclaredMethod("broken", Broken.class));
+        Assert.assertEquals(1, broken.getFailureCount());
+        Assert.assertEquals(1, monitor.getFailureCount());
+        Assert.assertEquals(4, monitor.getCallCount());
+
+        // disabled, nothing is recorded
+        listeners.setMonitor(null);
+        listeners.fireEvent(new Fast(this));
+        Assert.assertEquals(4, monitor.getEventCount());
+    }
+
+    @Test
+    public void testPerListener() throws Exception {
+        EventListeners listeners = new EventListeners();
+        DispatchMonitor monitor = new DispatchMonitor(1, TimeUnit.SECONDS);
+        listeners.setMonitor(monitor);
+        Worker first = new Worker();
+        listeners.register(first);
+        listeners.register(new Worker());
+        listeners.fireEvent(new Fast(this));
+        listeners.addListener(Fast.class, first, Worker.class.getDeclaredMethod("fast", Fast.class));
+        listeners.fireEvent(new Fast(this));
+
+        // the instances of a method are counted apart
+        List<ListenerSnapshot> fast = monitor.snapshot()
+                .getListeners(Worker.class.getDeclaredMethod("fast", Fast.class));
+        Assert.assertEquals(3, fast.size());
+        Assert.assertEquals(5, fast.stream().mapToLong(ListenerSnapshot::getCallCount).sum());
+        Assert.assertEquals(2, fast.stream().map(ListenerSnapshot::getTarget).distinct().count());
+    }
+
+    @Test
+    public void testRemoved() throws Exception {
+        EventListeners listeners = new EventListeners();
+        DispatchMonitor monitor = new DispatchMonitor(1, TimeUnit.SECONDS);
+        listeners.setMonitor(monitor);
+        Worker worker = new Worker();
+        Subscription subscription = listeners.register(worker);
+        listeners.addListener(Fast.class, worker, Worker.class.getDeclaredMethod("fast", Fast.class));
+        listeners.fireEvent(new Fast(this));
+        Assert.assertEquals(2, monitor.snapshot().getListeners().size());
+
+        // the statistics of removed listeners are not kept
+        subscription.close();
+        Assert.assertEquals(1, monitor.snapshot().getListeners().size());
+        listeners.removeListener(Fast.class, worker, Worker.class.getDeclaredMethod("fast", Fast.class));
+        Assert.assertTrue(monitor.snapshot().getListeners().isEmpty());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        DispatchMonitor monitor = new DispatchMonitor(1, TimeUnit.SECONDS);
+        ObjectName name = monitor.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertEquals(1_000_000L, server.getAttribute(name, "SlowThresholdMicros"));
+            EventListeners listeners = new EventListeners();
+            listeners.setMonitor(monitor);
+            listeners.register(new Worker());
+            listeners.fireEvent(new Fast(this));
+            Assert.assertEquals(1L, server.getAttribute(name, "CallCount"));
+            Assert.assertEquals(1, ((String[]) server.getAttribute(name, "ListenerStatistics")).length);
+        } finally {
+            DispatchMonitor.unregister("test");
+        }
+    }
+
+    /**
+     * A fast event.
+     */
+    public static class Fast extends EventObject<DispatchMonitorTest> {
+
+        Fast(DispatchMonitorTest src) {
+            super(src);
+        }
+    }
+
+    /**
+     * A slow event.
+     */
+    public static class Slow extends EventObject<DispatchMonitorTest> {
+
+        Slow(DispatchMonitorTest src) {
+            super(src);
+        }
+    }
+
+    /**
+     * A failing event.
+     */
+    public static class Broken extends EventObject<DispatchMonitorTest> {
+
+        Broken(DispatchMonitorTest src) {
+            super(src);
+        }
+    }
+
+    /**
+     * Handles all of them.
+     */
+    public static class Worker {
+
+        @Subscribe
+        public void fast(Fast evt) {
+            // nothing to do
+        }
+
+        @Subscribe
+        public void slow(Slow evt) throws InterruptedException {
+            Thread.sleep(5);
+        }
+
+        @Subscribe
+        public void broken(Broken evt) {
+            throw new IllegalStateException("broken");
+        }
+    }
+}
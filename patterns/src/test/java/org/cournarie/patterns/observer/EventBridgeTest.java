@@ -0,0 +1,222 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import static org.awaitility.Awaitility.await;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.cournarie.patterns.observer.EventCallback.MethodException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Events across a loopback bridge.
+ */
+public class EventBridgeTest {
+
+    @Test
+    public void testBridge() throws Exception {
+        EventListeners left = new EventListeners();
+        EventListeners right = new EventListeners();
+        Recorder recorder = new Recorder();
+        right.register(recorder);
+        try (EventBridge server = new EventBridge(left, new TextCodec());
+                EventBridge client = new EventBridge(right, new TextCodec())) {
+            server.export(Text.class);
+            server.export(Noise.class);
+            client.importEvents(Text.class);
+            client.connect(server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+            await().atMost(30, TimeUnit.SECONDS).until(() -> server.isWanted(Text.class));
+            Assert.assertFalse(server.isWanted(Noise.class));
+
+            // only the imported type crosses the wire, in order
+            for (int i = 0; i < 100; i++) {
+                left.fireEvent(new Text("text-" + i));
+                left.fireEvent(new Noise("noise-" + i));
+            }
+            await().atMost(30, TimeUnit.SECONDS).until(() -> recorder.texts.size() == 100);
+            Assert.assertEquals("text-0", recorder.texts.get(0));
+            Assert.assertEquals("text-99", recorder.texts.get(99));
+            Assert.assertEquals(100, server.getSentCount());
+            Assert.assertEquals(100, client.getReceivedCount());
+
+            // an event received is not sent back
+            client.export(Text.class);
+            Assert.assertEquals(0, client.getSentCount());
+        }
+    }
+
+    @Test
+    public void testUnsubscribe() throws Exception {
+        EventListeners left = new EventListeners();
+        try (EventBridge server = new EventBridge(left, new TextCodec());
+                EventBridge client = new EventBridge(new EventListeners(), new TextCodec())) {
+            server.export(Text.class);
+            client.connect(server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+            Subscription imported = client.importEvents(Text.class);
+            await().atMost(30, TimeUnit.SECONDS).until(() -> server.isWanted(Text.class));
+            imported.close();
+            await().atMost(30, TimeUnit.SECONDS).until(() -> !server.isWanted(Text.class));
+            left.fireEvent(new Text("lost"));
+            Assert.assertEquals(0, server.getSentCount());
+        }
+    }
+
+    @Test
+    public void testNoEchoAcrossThreads() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        // received events are fired on a pool thread, not the bridge one
+        EventListeners left = new AsyncEventListeners(pool);
+        EventListeners right = new AsyncEventListeners(pool);
+        Recorder recorder = new Recorder();
+        right.register(recorder);
+        try (EventBridge server = new EventBridge(left, new TextCodec());
+                EventBridge client = new EventBridge(right, new TextCodec())) {
+            server.export(Text.class);
+            server.importEvents(Text.class);
+            client.export(Text.class);
+            client.importEvents(Text.class);
+            client.connect(server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+            await().atMost(30, TimeUnit.SECONDS)
+                    .until(() -> server.isWanted(Text.class) && client.isWanted(Text.class));
+
+            left.fireEvent(new Text("once"));
+            await().atMost(30, TimeUnit.SECONDS).until(() -> recorder.texts.size() == 1);
+            Thread.sleep(100);
+            Assert.assertEquals(0, client.getSentCount());
+            Assert.assertEquals(0, server.getReceivedCount());
+            Assert.assertEquals(1, recorder.texts.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSlowPeer() throws Exception {
+        EventListeners left = new EventListeners();
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+                EventBridge client = new EventBridge(left, new TextCodec(), 64 * 1024, OverflowPolicy.DROP_NEWEST)) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client.export(Text.class);
+            client.connect((InetSocketAddress) server.getLocalAddress());
+            try (SocketChannel peer = server.accept()) {
+                // a peer importing texts, which never reads them
+                byte[] name = Text.class.getName().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer subscribe = ByteBuffer.allocate(Integer.BYTES + 1 + name.length);
+                subscribe.putInt(1 + name.length).put((byte) 1).put(name).flip();
+                peer.write(subscribe);
+                await().atMost(30, TimeUnit.SECONDS).until(() -> client.isWanted(Text.class));
+
+                char[] text = new char[1000];
+                Arrays.fill(text, 'x');
+                for (int i = 0; i < 20_000; i++) {
+                    left.fireEvent(new Text(new String(text)));
+                }
+                Assert.assertTrue(client.getDroppedCount() > 0);
+                Assert.assertEquals(20_000, client.getSentCount() + client.getDroppedCount());
+            }
+        }
+    }
+
+    @Test
+    public void testLargeFrame() throws Exception {
+        EventListeners left = new EventListeners();
+        EventListeners right = new EventListeners();
+        Recorder recorder = new Recorder();
+        right.register(recorder);
+        try (EventBridge server = new EventBridge(left, new TextCodec());
+                EventBridge client = new EventBridge(right, new TextCodec())) {
+            server.export(Text.class);
+            client.importEvents(Text.class);
+            client.connect(server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)));
+            await().atMost(30, TimeUnit.SECONDS).until(() -> server.isWanted(Text.class));
+
+            // within the buffer limit, over the frame limit of the receiver
+            char[] text = new char[16 * 1024 * 1024];
+            Arrays.fill(text, 'x');
+            try {
+                left.fireEvent(new Text(new String(text)));
+                Assert.fail("Exception should have be raised...");
+            } catch (MethodException exc) {
+                Assert.assertTrue(exc.getCause().getCause() instanceof IllegalStateException);
+            }
+            Assert.assertEquals(1, server.getDroppedCount());
+
+            // the peer is still connected
+            left.fireEvent(new Text("small"));
+            await().atMost(30, TimeUnit.SECONDS).until(() -> recorder.texts.size() == 1);
+            Assert.assertEquals("small", recorder.texts.get(0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDropOldest() throws Exception {
+        new EventBridge(new EventListeners(), new TextCodec(), 64 * 1024, OverflowPolicy.DROP_OLDEST).close();
+    }
+
+    /**
+     * A text event.
+     */
+    public static class Text extends EventObject<String> {
+
+        public Text(String text) {
+            super(text);
+        }
+    }
+
+    /**
+     * An event nobody imports.
+     */
+    public static class Noise extends EventObject<String> {
+
+        public Noise(String text) {
+            super(text);
+        }
+    }
+
+    /**
+     * Texts as a type byte and UTF-8 text.
+     */
+    public static class TextCodec implements EventCodec {
+
+        @Override
+        public byte[] encode(EventObject<?> event) {
+            byte[] text = ((String) event.getSource()).getBytes(StandardCharsets.UTF_8);
+            byte[] data = new byte[text.length + 1];
+            data[0] = (byte) (event instanceof Noise ? 1 : 0);
+            System.arraycopy(text, 0, data, 1, text.length);
+            return data;
+        }
+
+        @Override
+        public EventObject<?> decode(byte[] data) {
+            String text = new String(data, 1, data.length - 1, StandardCharsets.UTF_8);
+            return data[0] == 1 ? new Noise(text) : new Text(text);
+        }
+    }
+
+    /**
+     * Keeps the received texts.
+     */
+    public static class Recorder {
+
+        private final List<String> texts = new CopyOnWriteArrayList<>();
+
+        @Subscribe
+        void onText(Text text) {
+            texts.add(text.getSource());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import org.cournarie.patterns.observer.EventCallback.MethodException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Callback invocation.
+ */
+public class EventCallbackTest {
+
+    @Test
+    public void testExceptions() {
+        Counter counter = new Counter();
+        EventCallback failing = new EventCallback(Ping.class, counter, Counter.FAIL);
+        try {
+            failing.sendEvent(new Ping(this));
+            Assert.fail("Exception should have be raised...");
+        } catch (MethodException exc) {
+            // same chain as reflection: the listener failure is the target exception
+            Assert.assertTrue(exc.getCause() instanceof InvocationTargetException);
+            Assert.assertEquals("fail", exc.getCause().getCause().getMessage());
+        }
+
+        EventCallback wrong = new EventCallback(Ping.class, counter, Counter.WRONG);
+        try {
+            wrong.sendEvent(new Ping(this));
+            Assert.fail("Exception should have be raised...");
+        } catch (MethodException exc) {
+            Assert.assertTrue(exc.getCause() instanceof IllegalArgumentException);
+        }
+
+        // a listener failure, whatever its type, is not an argument error
+        EventCallback casting = new EventCallback(Ping.class, counter, Counter.CAST);
+        try {
+            casting.sendEvent(new Ping(this));
+            Assert.fail("Exception should have be raised...");
+        } catch (MethodException exc) {
+            Assert.assertTrue(exc.getCause() instanceof InvocationTargetException);
+            Assert.assertTrue(exc.getCause().getCause() instanceof ClassCastException);
+        }
+        try {
+            new EventCallback(Ping.class, counter, Counter.PING).sendEvent(new Pong(this));
+            Assert.fail("Exception should have be raised...");
+        } catch (MethodException exc) {
+            Assert.assertTrue(exc.getCause() instanceof IllegalArgumentException);
+        }
+        try {
+            new EventCallback(Ping.class, "not a counter", Counter.PING).sendEvent(new Ping(this));
+            Assert.fail("Exception should have be raised...");
+        } catch (MethodException exc) {
+            Assert.assertTrue(exc.getCause() instanceof IllegalArgumentException);
+        }
+        Assert.assertEquals(0, counter.count);
+
+        EventCallback statics = new EventCallback(Ping.class, null, Counter.STATIC_PING);
+        statics.sendEvent(new Ping(this));
+        Assert.assertEquals(1, Counter.staticCount);
+    }
+
+    /**
+     * Event definition.
+     */
+    public static class Ping extends EventObject<EventCallbackTest> {
+
+        Ping(EventCallbackTest src) {
+            super(src);
+        }
+    }
+
+    /**
+     * Another event.
+     */
+    public static class Pong extends EventObject<EventCallbackTest> {
+
+        Pong(EventCallbackTest src) {
+            super(src);
+        }
+    }
+
+    /**
+     * Counts pings.
+     */
+    public static class Counter {
+
+        static final Method PING;
+        static final Method FAIL;
+        static final Method WRONG;
+        static final Method CAST;
+        static final Method STATIC_PING;
+
+        static {
+            try {
+                PING = Counter.class.getDeclaredMethod("ping", new Class[]{Ping.class});
+                FAIL = Counter.class.getDeclaredMethod("fail", new Class[]{Ping.class});
+                WRONG = Counter.class.getDeclaredMethod("wrong", new Class[]{Ping.class, Ping.class});
+                CAST = Counter.class.getDeclaredMethod("cast", new Class[]{Ping.class});
+                STATIC_PING = Counter.class.getDeclaredMethod("staticPing", new Class[]{Ping.class});
+            } catch (final java.lang.NoSuchMethodException e) {
+                throw new java.lang.RuntimeException("Internal error", e);
+            }
+        }
+
+        private static int staticCount = 0;
+        private long count = 0;
+
+        public void ping(Ping evt) {
+            count += 1;
+        }
+
+        public void fail(Ping evt) {
+            throw new IllegalStateException("fail");
+        }
+
+        public void cast(Ping evt) {
+            count += ((Number) (Object) evt.getSource().toString()).longValue();
+        }
+
+        public void wrong(Ping evt, Ping other) {
+            count += 1;
+        }
+
+        public static void staticPing(Ping evt) {
+            staticCount += 1;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Journal and replay.
+ */
+public class EventJournalTest {
+
+    /** Segment directories. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplay() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        EventListeners live = new EventListeners();
+        try (EventJournal journal = new EventJournal(dir, new NoteCodec(), 80, SyncPolicy.GROUP)) {
+            journal.record(live, Note.class);
+            for (int i = 0; i < 20; i++) {
+                live.fireEvent(new Note("note-" + i));
+            }
+            // 14 or 15 bytes records, 5 per segment
+            Assert.assertEquals(20, journal.getNextSequence());
+            Assert.assertEquals(4, journal.getSegmentCount());
+
+            NoteListener listener = new NoteListener();
+            EventListeners replayed = new EventListeners();
+            replayed.register(listener);
+            Assert.assertEquals(20, journal.replay(7, replayed));
+            Assert.assertEquals(13, listener.notes.size());
+            Assert.assertEquals("note-7", listener.notes.get(0));
+            Assert.assertEquals("note-19", listener.notes.get(12));
+        }
+
+        // reopened, the index is rebuilt and appends go on
+        try (EventJournal journal = new EventJournal(dir, new NoteCodec(), 80, SyncPolicy.ALWAYS)) {
+            Assert.assertEquals(20, journal.getNextSequence());
+            Assert.assertEquals(20, journal.append(new Note("note-20")));
+            NoteListener listener = new NoteListener();
+            EventListeners replayed = new EventListeners();
+            replayed.register(listener);
+            Assert.assertEquals(21, journal.replay(0, replayed));
+            Assert.assertEquals(21, listener.notes.size());
+            Assert.assertEquals("note-20", listener.notes.get(20));
+        }
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        try (EventJournal journal = new EventJournal(folder.newFolder().toPath(), new NoteCodec(), 80,
+                SyncPolicy.NEVER)) {
+            journal.setRetention(160, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < 20; i++) {
+                journal.append(new Note("note-" + i));
+            }
+            // only the last two segments are kept
+            Assert.assertEquals(2, journal.getSegmentCount());
+            Assert.assertEquals(10, journal.getFirstSequence());
+
+            NoteListener listener = new NoteListener();
+            EventListeners replayed = new EventListeners();
+            replayed.register(listener);
+            journal.replay(0, replayed);
+            Assert.assertEquals("note-10", listener.notes.get(0));
+            Assert.assertEquals(10, listener.notes.size());
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        Path dir = folder.newFolder().toPath();
+        try (EventJournal journal = new EventJournal(dir, new NoteCodec(), 80, SyncPolicy.ALWAYS)) {
+            for (int i = 0; i < 3; i++) {
+                journal.append(new Note("note-" + i));
+            }
+        }
+        // the data of the second record, after the 14 bytes of the first and its header
+        try (FileChannel file = FileChannel.open(dir.resolve(String.format("%020d.journal", 0)),
+                StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[]{'x'}), 14 + 8);
+        }
+        try (EventJournal journal = new EventJournal(dir, new NoteCodec(), 80, SyncPolicy.ALWAYS)) {
+            Assert.assertEquals(1, journal.getNextSequence());
+            NoteListener listener = new NoteListener();
+            EventListeners replayed = new EventListeners();
+            replayed.register(listener);
+            Assert.assertEquals(1, journal.replay(0, replayed));
+            Assert.assertEquals("[note-0]", listener.notes.toString());
+        }
+    }
+
+    @Test
+    public void testReplayRecorded() throws Exception {
+        EventListeners live = new EventListeners();
+        try (EventJournal journal = new EventJournal(folder.newFolder().toPath(), new NoteCodec(), 80,
+                SyncPolicy.NEVER)) {
+            journal.record(live, Note.class);
+            for (int i = 0; i < 3; i++) {
+                live.fireEvent(new Note("note-" + i));
+            }
+            // the replayed events are recorded again, and not replayed
+            Assert.assertEquals(3, journal.replay(0, live));
+            Assert.assertEquals(6, journal.getNextSequence());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLarge() throws Exception {
+        try (EventJournal journal = new EventJournal(folder.newFolder().toPath(), new NoteCodec(), 16,
+                SyncPolicy.NEVER)) {
+            journal.append(new Note("a note too long for a segment"));
+        }
+    }
+
+    /**
+     * A text note.
+     */
+    public static class Note extends EventObject<String> {
+
+        public Note(String text) {
+            super(text);
+        }
+    }
+
+    /**
+     * Notes as UTF-8 text.
+     */
+    public static class NoteCodec implements EventCodec {
+
+        @Override
+        public byte[] encode(EventObject<?> event) {
+            return ((String) event.getSource()).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public EventObject<?> decode(byte[] data) {
+            return new Note(new String(data, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Keeps the notes.
+     */
+    public static class NoteListener {
+
+        private final List<String> notes = new ArrayList<>();
+
+        @Subscribe
+        void onNote(Note note) {
+            notes.add(note.getSource());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Parallel fan out.
+ */
+public class ForkJoinListenerTest {
+
+    /** Fork/join pool. */
+    private final ForkJoinPool pool = new ForkJoinPool(2);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testFanOut() {
+        ForkJoinEventListeners listeners = new ForkJoinEventListeners(pool);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 5000; i++) {
+            listeners.register(new Session(calls, false));
+        }
+        for (int i = 0; i < 10; i++) {
+            listeners.fireEvent(new Ping("ping"));
+        }
+        Assert.assertEquals(50000, calls.get());
+        Assert.assertTrue(listeners.getChunkSize() >= 16);
+    }
+
+    @Test
+    public void testFailures() {
+        ForkJoinEventListeners listeners = new ForkJoinEventListeners(pool);
+        AtomicInteger calls = new AtomicInteger();
+        for (int i = 0; i < 1000; i++) {
+            listeners.register(new Session(calls, i % 300 == 0));
+        }
+        try {
+            listeners.fireEvent(new Ping("ping"));
+            Assert.fail("Failures not reported");
+        } catch (EventCallback.MethodException e) {
+            // all listeners called, one exception for all failures
+            Assert.assertEquals(1000, calls.get());
+            Assert.assertEquals(3, e.getSuppressed().length);
+        }
+    }
+
+    /**
+     * A ping.
+     */
+    public static class Ping extends EventObject<String> {
+
+        public Ping(String src) {
+            super(src);
+        }
+    }
+
+    /**
+     * A session listener.
+     */
+    public static class Session {
+
+        private final AtomicInteger calls;
+        private final boolean broken;
+
+        public Session(AtomicInteger calls, boolean broken) {
+            this.calls = calls;
+            this.broken = broken;
+        }
+
+        @Subscribe
+        void onPing(Ping ping) {
+            calls.incrementAndGet();
+            if (broken) {
+                throw new IllegalStateException("Broken session");
+            }
+        }
+    }
+}
@@ -3,7 +3,11 @@
  */
 package org.cournarie.patterns.observer;
 
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.cournarie.patterns.observer.EventCallback.MethodException;
 import org.junit.Assert;
 import org.junit.Test;
@@ -54,6 +58,239 @@ public class ListenerTest {
         Assert.assertEquals(1, callCount);
     }
 
+    @Test
+    public void testListenWhileFiring() {
+        EventListeners listeners = new EventListeners();
+        MyEventListener listener = new MyEventListener();
+        SelfRemovingListener sListener = new SelfRemovingListener(listeners, listener);
+        listeners.addListener(MyEvent.class, sListener, SelfRemovingListener.ONCE);
+
+        // the listener added during the call does not see the current event
+        MyEvent myEvent = new MyEvent(this);
+        listeners.fireEvent(myEvent);
+        Assert.assertEquals(0, callCount);
+        Assert.assertEquals(1, sListener.calls);
+
+        // the self removed one is gone, the added one is there
+        listeners.fireEvent(myEvent);
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(1, sListener.calls);
+    }
+
+    @Test
+    public void testListenHierarchy() {
+        EventListeners listeners = new EventListeners();
+        MyEventListener listener = new MyEventListener();
+        AnyEventListener aListener = new AnyEventListener();
+        listeners.addListener(MyEvent.class, listener, MyEventListener.CALL_ME);
+        listeners.addListener(EventObject.class, aListener, AnyEventListener.CALL_ANY);
+
+        // sub events reach listeners of their super types
+        listeners.fireEvent(new MySubEvent(this));
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(1, aListener.calls);
+
+        listeners.fireEvent(new AnotherEvent(this));
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(2, aListener.calls);
+
+        // the cached dispatch is dropped on registration changes
+        listeners.removeListener(EventObject.class, aListener, AnyEventListener.CALL_ANY);
+        listeners.fireEvent(new MySubEvent(this));
+        listeners.fireEvent(new AnotherEvent(this));
+        Assert.assertEquals(2, callCount);
+        Assert.assertEquals(2, aListener.calls);
+    }
+
+    @Test
+    public void testListenBatch() {
+        EventListeners listeners = new EventListeners();
+        MyEventListener listener = new MyEventListener();
+        BatchListener bListener = new BatchListener();
+        listeners.addListener(MyEvent.class, listener, MyEventListener.CALL_ME);
+        listeners.addBatchListener(MyEvent.class, bListener, BatchListener.CALL_ALL);
+
+        // one call for the whole matching sub batch
+        listeners.fireEvents(Arrays.asList(new MyEvent(this), new AnotherEvent(this), new MySubEvent(this)));
+        Assert.assertEquals(2, callCount);
+        Assert.assertEquals(1, bListener.batches.size());
+        Assert.assertEquals(2, bListener.batches.get(0).size());
+
+        // a single event is a batch of one
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(3, callCount);
+        Assert.assertEquals(2, bListener.batches.size());
+        Assert.assertEquals(1, bListener.batches.get(1).size());
+
+        // nothing matching, no call
+        listeners.fireEvents(Arrays.asList(new AnotherEvent(this)));
+        Assert.assertEquals(2, bListener.batches.size());
+    }
+
+    @Test
+    public void testSubscription() {
+        EventListeners listeners = new EventListeners();
+        List<Subscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            subscriptions.add(listeners.addListener(MyEvent.class, new MyEventListener(), MyEventListener.CALL_ME));
+        }
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(100, callCount);
+
+        // closed ones are not called anymore, even before compaction
+        subscriptions.get(0).close();
+        subscriptions.get(0).close();
+        Assert.assertFalse(subscriptions.get(0).isActive());
+        Assert.assertEquals(100, listeners.callbacks().length);
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(199, callCount);
+
+        // compacted once half of them are closed
+        for (int i = 1; i <= 50; i++) {
+            subscriptions.get(i).close();
+        }
+        Assert.assertEquals(49, listeners.callbacks().length);
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(248, callCount);
+        Assert.assertTrue(subscriptions.get(99).isActive());
+    }
+
+    @Test
+    public void testRegister() {
+        EventListeners listeners = new EventListeners();
+        AnnotatedListener aListener = new AnnotatedListener();
+        Subscription subscription = listeners.register(aListener);
+
+        listeners.fireEvents(Arrays.asList(new MyEvent(this), new AnotherEvent(this), new AnotherEvent(this)));
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(1, aListener.batches);
+
+        // handlers are looked up once per class
+        Assert.assertSame(Handler.annotated(AnnotatedListener.class), Handler.annotated(AnnotatedListener.class));
+        listeners.register(new AnnotatedListener());
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(3, callCount);
+
+        subscription.close();
+        Assert.assertFalse(subscription.isActive());
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(4, callCount);
+        Assert.assertEquals(1, aListener.batches);
+
+        try {
+            listeners.register(new MyEventListener());
+            Assert.fail("Exception should have be raised...");
+        } catch (IllegalArgumentException exc) {
+            // this one is expected
+        }
+    }
+
+    @Test
+    public void testWeakListener() throws InterruptedException {
+        EventListeners listeners = new EventListeners();
+        MyEventListener kept = new MyEventListener();
+        listeners.addWeakListener(MyEvent.class, kept, MyEventListener.CALL_ME);
+        listeners.addWeakListener(MyEvent.class, new MyEventListener(), MyEventListener.CALL_ME);
+        listeners.registerWeak(new AnnotatedListener());
+
+        // the unreferenced listeners go away
+        WeakReference<Object> probe = new WeakReference<>(new Object());
+        for (int i = 0; i < 50 && probe.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertNull(probe.get());
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(1, callCount);
+
+        // and are purged on next registration
+        listeners.addListener(AnotherEvent.class, kept, MyEventListener.CALL_ME);
+        Assert.assertEquals(2, listeners.callbacks().length);
+        listeners.removeListener(MyEvent.class, kept, MyEventListener.CALL_ME);
+        Assert.assertEquals(1, listeners.callbacks().length);
+    }
+
+    @Test
+    public void testSourceFilter() {
+        EventListeners listeners = new EventListeners();
+        ListenerTest other = new ListenerTest();
+        listeners.addListener(MyEvent.class, this, SourceMatch.IDENTITY, new MyEventListener(),
+                MyEventListener.CALL_ME);
+        listeners.register(new AnnotatedListener(), other, SourceMatch.EQUALITY);
+
+        // each listener only gets the events of its source
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(0, other.callCount);
+        listeners.fireEvent(new MySubEvent(other));
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(1, other.callCount);
+        listeners.fireEvents(Arrays.asList(new MyEvent(this), new MyEvent(other)));
+        Assert.assertEquals(2, callCount);
+        Assert.assertEquals(2, other.callCount);
+
+        // the event type still applies
+        listeners.fireEvent(new AnotherEvent(this));
+        Assert.assertEquals(2, callCount);
+    }
+
+    @Test
+    public void testSourceOrder() {
+        EventListeners listeners = new EventListeners();
+        List<String> calls = new ArrayList<>();
+        // registered in reverse order
+        listeners.register(new OrderListener("identity", calls), this, SourceMatch.IDENTITY);
+        listeners.register(new OrderListener("equality", calls), this, SourceMatch.EQUALITY);
+        listeners.register(new OrderListener("unfiltered", calls));
+
+        // unfiltered listeners first, then by equality, then by identity
+        listeners.fireEvent(new MyEvent(this));
+        Assert.assertEquals(Arrays.asList("unfiltered", "equality", "identity"), calls);
+        calls.clear();
+        listeners.fireEvents(Arrays.asList(new MyEvent(this)));
+        Assert.assertEquals(Arrays.asList("unfiltered", "equality", "identity"), calls);
+    }
+
+    @Test
+    public void testSticky() {
+        EventListeners listeners = new EventListeners();
+        listeners.setSticky(2, true);
+        ListenerTest other = new ListenerTest();
+        listeners.fireEvent(new MyEvent(this));
+        listeners.fireEvent(new MyEvent(other));
+
+        // late listeners get the kept events at once
+        listeners.register(new AnnotatedListener());
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(1, other.callCount);
+        listeners.register(new AnnotatedListener(), other, SourceMatch.IDENTITY);
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(2, other.callCount);
+
+        // beyond capacity the least recently used is evicted
+        listeners.fireEvent(new AnotherEvent(this));
+        listeners.addListener(MyEvent.class, new MyEventListener(), MyEventListener.CALL_ME);
+        Assert.assertEquals(1, callCount);
+        Assert.assertEquals(3, other.callCount);
+    }
+
+    @Test
+    public void testStickyUsed() {
+        EventListeners listeners = new EventListeners();
+        listeners.setSticky(2, true);
+        ListenerTest other = new ListenerTest();
+        listeners.fireEvent(new MyEvent(this));
+        listeners.fireEvent(new MyEvent(other));
+        // delivered to a late listener, the first fired is used last
+        listeners.register(new AnnotatedListener(), this, SourceMatch.IDENTITY);
+        Assert.assertEquals(1, callCount);
+
+        listeners.fireEvent(new AnotherEvent(this));
+        listeners.addListener(MyEvent.class, new MyEventListener(), MyEventListener.CALL_ME);
+        Assert.assertEquals(2, callCount);
+        Assert.assertEquals(0, other.callCount);
+    }
+
     void called() {
         callCount += 1;
     }
@@ -72,6 +309,16 @@ public class ListenerTest {
         }
     }
 
+    /**
+     * A more specific event.
+     */
+    public static class MySubEvent extends MyEvent {
+
+        MySubEvent(ListenerTest src) {
+            super(src);
+        }
+    }
+
     /**
      * Yet another event definition.
      */
@@ -102,6 +349,87 @@ public class ListenerTest {
         }
     }
 
+    /**
+     * Listens to any event.
+     */
+    public static class AnyEventListener {
+
+        static final Method CALL_ANY;
+
+        static {
+            try {
+                CALL_ANY = AnyEventListener.class.getDeclaredMethod("callAny", new Class[]{EventObject.class});
+            } catch (final java.lang.NoSuchMethodException e) {
+                throw new java.lang.RuntimeException("Internal error", e);
+            }
+        }
+
+        private int calls = 0;
+
+        public void callAny(EventObject<?> evt) {
+            calls += 1;
+        }
+    }
+
+    /**
+     * Listens to batches.
+     */
+    public static class BatchListener {
+
+        static final Method CALL_ALL;
+
+        static {
+            try {
+                CALL_ALL = BatchListener.class.getDeclaredMethod("callAll", new Class[]{List.class});
+            } catch (final java.lang.NoSuchMethodException e) {
+                throw new java.lang.RuntimeException("Internal error", e);
+            }
+        }
+
+        private final List<List<MyEvent>> batches = new ArrayList<>();
+
+        public void callAll(List<MyEvent> evts) {
+            batches.add(new ArrayList<>(evts));
+        }
+    }
+
+    /**
+     * Records its name in a shared list.
+     */
+    static class OrderListener {
+
+        private final String name;
+        private final List<String> calls;
+
+        OrderListener(String name, List<String> calls) {
+            this.name = name;
+            this.calls = calls;
+        }
+
+        @Subscribe
+        void onEvent(MyEvent evt) {
+            calls.add(name);
+        }
+    }
+
+    /**
+     * Annotated listener.
+     */
+    static class AnnotatedListener {
+
+        private int batches = 0;
+
+        @Subscribe
+        void callMe(MyEvent evt) {
+            evt.getSource().called();
+        }
+
+        @Subscribe
+        void callAll(List<? extends AnotherEvent> evts) {
+            batches += 1;
+        }
+    }
+
     /**
      * A broken one that tries to kill..
      */
@@ -122,4 +450,35 @@ public class ListenerTest {
             throw new RuntimeException("Can I broke others ??");
         }
     }
+
+    /**
+     * A listener that replaces itself by another one on first call.
+     */
+    public static class SelfRemovingListener {
+
+        static final Method ONCE;
+
+        static {
+            try {
+                ONCE = SelfRemovingListener.class.getDeclaredMethod("once", new Class[]{MyEvent.class});
+            } catch (final java.lang.NoSuchMethodException e) {
+                throw new java.lang.RuntimeException("Internal error", e);
+            }
+        }
+
+        private final EventListeners listeners;
+        private final MyEventListener next;
+        private int calls = 0;
+
+        SelfRemovingListener(EventListeners listeners, MyEventListener next) {
+            this.listeners = listeners;
+            this.next = next;
+        }
+
+        public void once(MyEvent evt) {
+            calls += 1;
+            listeners.removeListener(MyEvent.class, this, ONCE);
+            listeners.addListener(MyEvent.class, next, MyEventListener.CALL_ME);
+        }
+    }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Recycled events.
+ */
+public class PooledEventTest {
+
+    @Test
+    public void testRecycle() {
+        EventPool<String, Tick> ticks = new EventPool<>(Tick::new, 4);
+        EventListeners listeners = new EventListeners();
+        TickListener listener = new TickListener();
+        listeners.register(listener);
+
+        Tick first = ticks.acquire("EUR").value(1);
+        listeners.fireAndRelease(first);
+        Assert.assertEquals(1, ticks.getFreeCount());
+
+        // same instance, cleared then filled again
+        Tick second = ticks.acquire("USD");
+        Assert.assertSame(first, second);
+        Assert.assertEquals(0, second.getValue());
+        listeners.fireAndRelease(second.value(2));
+
+        Assert.assertEquals("EUR=1", listener.received.get(0));
+        Assert.assertEquals("USD=2", listener.received.get(1));
+    }
+
+    @Test
+    public void testUseAfterRelease() {
+        EventPool<String, Tick> ticks = new EventPool<>(Tick::new, 4, true);
+        EventListeners listeners = new EventListeners();
+        TickListener listener = new TickListener();
+        listeners.register(listener);
+
+        listeners.fireAndRelease(ticks.acquire("EUR").value(1));
+        Tick stale = listener.kept.get(0);
+        try {
+            stale.getValue();
+            Assert.fail("released event used");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            stale.release();
+            Assert.fail("released twice");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // debug pools never reuse
+        Assert.assertNotSame(stale, ticks.acquire("EUR"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testDeferred() {
+        Executor direct = Runnable::run;
+        new AsyncEventListeners(direct).fireAndRelease(new EventPool<>(Tick::new, 4).acquire("EUR"));
+    }
+
+    @Test
+    public void testDeferredFire() {
+        Executor direct = Runnable::run;
+        EventPool<String, Tick> ticks = new EventPool<>(Tick::new, 4);
+        EventListeners[] deferred = {new AsyncEventListeners(direct),
+            new QueuedEventListeners(direct, 4, OverflowPolicy.FAIL), new VirtualEventListeners()};
+        for (EventListeners listeners : deferred) {
+            TickListener listener = new TickListener();
+            listeners.register(listener);
+            try {
+                listeners.fireEvent(ticks.acquire("EUR"));
+                Assert.fail("Exception should have be raised...");
+            } catch (IllegalArgumentException exc) {
+                // released before delivery otherwise
+            }
+            Assert.assertTrue(listener.received.isEmpty());
+        }
+    }
+
+    /**
+     * Records the ticks, and wrongly keeps them.
+     */
+    public static class TickListener {
+
+        private final List<String> received = new ArrayList<>();
+        private final List<Tick> kept = new ArrayList<>();
+
+        @Subscribe
+        void onTick(Tick t) {
+            received.add(t.getSource() + "=" + t.getValue());
+            kept.add(t);
+        }
+    }
+
+    /**
+     * A recyclable tick.
+     */
+    public static class Tick extends PooledEvent<String> {
+
+        private int value;
+
+        public Tick value(int v) {
+            value = v;
+            return this;
+        }
+
+        public int getValue() {
+            checkLive();
+            return value;
+        }
+
+        @Override
+        protected void recycle() {
+            value = 0;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Bounded queued delivery.
+ */
+public class QueuedListenerTest {
+
+    /** Queue capacity. */
+    private static final int CAPACITY = 2;
+    /** Thread pool. */
+    private final ExecutorService pool = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        Gate gate = new Gate();
+        QueuedSubscription s = fill(OverflowPolicy.DROP_NEWEST, gate);
+        // 1 in delivery, 2 and 3 queued, 4 and 5 dropped
+        Assert.assertEquals(CAPACITY, s.getQueueDepth());
+        Assert.assertEquals(2, s.getDropCount());
+        Assert.assertEquals(3, gate.release(3).size());
+        Assert.assertEquals(3, (int) gate.received.get(2));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        Gate gate = new Gate();
+        QueuedSubscription s = fill(OverflowPolicy.DROP_OLDEST, gate);
+        // 1 in delivery, 4 and 5 queued, 2 and 3 dropped
+        Assert.assertEquals(CAPACITY, s.getQueueDepth());
+        Assert.assertEquals(2, s.getDropCount());
+        List<Integer> received = gate.release(3);
+        Assert.assertEquals(5, (int) received.get(2));
+    }
+
+    @Test
+    public void testFail() throws Exception {
+        Gate gate = new Gate();
+        QueuedEventListeners listeners = new QueuedEventListeners(pool, CAPACITY, OverflowPolicy.FAIL);
+        QueuedSubscription s = listeners.addListener(Numbered.class, gate, Gate.PASS);
+        listeners.fireEvent(new Numbered(this, 1));
+        gate.entered.await(30, TimeUnit.SECONDS);
+        listeners.fireEvent(new Numbered(this, 2));
+        listeners.fireEvent(new Numbered(this, 3));
+        try {
+            listeners.fireEvent(new Numbered(this, 4));
+            Assert.fail("Exception should have be raised...");
+        } catch (IllegalStateException exc) {
+            // this one is expected
+        }
+        Assert.assertEquals(1, s.getDropCount());
+        Assert.assertEquals(3, gate.release(3).size());
+    }
+
+    @Test
+    public void testFailOthers() throws Exception {
+        Gate full = new Gate();
+        Gate open = new Gate();
+        QueuedEventListeners listeners = new QueuedEventListeners(pool, CAPACITY, OverflowPolicy.FAIL);
+        listeners.addListener(Numbered.class, full, Gate.PASS);
+        QueuedSubscription s = listeners.addListener(Numbered.class, open, Gate.PASS);
+        listeners.fireEvent(new Numbered(this, 1));
+        full.entered.await(30, TimeUnit.SECONDS);
+        open.release(1);
+        listeners.fireEvent(new Numbered(this, 2));
+        open.release(2);
+        listeners.fireEvent(new Numbered(this, 3));
+        open.release(3);
+        try {
+            listeners.fireEvent(new Numbered(this, 4));
+            Assert.fail("Exception should have be raised...");
+        } catch (IllegalStateException exc) {
+            // this one is expected
+        }
+        // the listener after the full one still gets the event
+        Assert.assertEquals(4, (int) open.release(4).get(3));
+        Assert.assertEquals(0, s.getDropCount());
+        Assert.assertEquals(3, full.release(3).size());
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        Gate gate = new Gate();
+        QueuedEventListeners listeners = new QueuedEventListeners(pool, CAPACITY, OverflowPolicy.BLOCK);
+        QueuedSubscription s = listeners.addListener(Numbered.class, gate, Gate.PASS);
+        listeners.fireEvent(new Numbered(this, 1));
+        gate.entered.await(30, TimeUnit.SECONDS);
+        listeners.fireEvent(new Numbered(this, 2));
+        listeners.fireEvent(new Numbered(this, 3));
+        // the publisher waits for room
+        Future<?> blocked = pool.submit(() -> listeners.fireEvent(new Numbered(this, 4)));
+        Thread.sleep(50);
+        Assert.assertFalse(blocked.isDone());
+        List<Integer> received = gate.release(4);
+        blocked.get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(4, (int) received.get(3));
+        Assert.assertEquals(0, s.getDropCount());
+    }
+
+    @Test
+    public void testSticky() throws Exception {
+        for (OverflowPolicy policy : new OverflowPolicy[]{OverflowPolicy.FAIL, OverflowPolicy.BLOCK}) {
+            // nothing drains: the kept events fill the new queue
+            List<Runnable> tasks = new ArrayList<>();
+            QueuedEventListeners listeners = new QueuedEventListeners(tasks::add, CAPACITY, policy);
+            listeners.setSticky(4, true);
+            for (int i = 1; i <= 4; i++) {
+                listeners.fireEvent(new Numbered(new QueuedListenerTest(), i));
+            }
+
+            // the registration neither fails nor blocks on the events over the capacity
+            QueuedSubscription s = listeners.addListener(Numbered.class, new Gate(), Gate.PASS);
+            Assert.assertEquals(CAPACITY, s.getQueueDepth());
+            Assert.assertEquals(2, s.getDropCount());
+            Assert.assertEquals(1, tasks.size());
+            s.close();
+            Assert.assertFalse(s.isActive());
+        }
+    }
+
+    /**
+     * Sends 5 events to a listener blocked on the first one.
+     * @param policy
+     * @param gate
+     * @return the registration
+     * @throws InterruptedException
+     */
+    private QueuedSubscription fill(OverflowPolicy policy, Gate gate) throws InterruptedException {
+        QueuedEventListeners listeners = new QueuedEventListeners(pool, CAPACITY, policy);
+        QueuedSubscription s = listeners.addListener(Numbered.class, gate, Gate.PASS);
+        listeners.fireEvent(new Numbered(this, 1));
+        gate.entered.await(30, TimeUnit.SECONDS);
+        for (int i = 2; i <= 5; i++) {
+            listeners.fireEvent(new Numbered(this, i));
+        }
+        return s;
+    }
+
+    /**
+     * A numbered event.
+     */
+    public static class Numbered extends EventObject<QueuedListenerTest> {
+
+        private final int number;
+
+        Numbered(QueuedListenerTest src, int number) {
+            super(src);
+            this.number = number;
+        }
+    }
+
+    /**
+     * Blocks on delivery until released.
+     */
+    public static class Gate {
+
+        static final Method PASS;
+
+        static {
+            try {
+                PASS = Gate.class.getDeclaredMethod("pass", new Class[]{Numbered.class});
+            } catch (final java.lang.NoSuchMethodException e) {
+                throw new java.lang.RuntimeException("Internal error", e);
+            }
+        }
+
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch open = new CountDownLatch(1);
+        private final List<Integer> received = new ArrayList<>();
+
+        public void pass(Numbered evt) throws InterruptedException {
+            entered.countDown();
+            open.await();
+            synchronized (received) {
+                received.add(evt.number);
+            }
+        }
+
+        /**
+         * Opens the gate and waits for some events.
+         * @param count
+         * @return the received events
+         * @throws InterruptedException
+         */
+        List<Integer> release(int count) throws InterruptedException {
+            open.countDown();
+            for (int i = 0; i < 3000; i++) {
+                synchronized (received) {
+                    if (received.size() >= count) {
+                        return new ArrayList<>(received);
+                    }
+                }
+                Thread.sleep(10);
+            }
+            Assert.fail("Events not received");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Ring buffer delivery, for every producer type and wait strategy.
+ */
+public class RingBufferEventBusTest {
+
+    /** Logger. */
+    private static final Logger LOGGER = Logger.getLogger(RingBufferEventBusTest.class);
+    /** How many producers. */
+    private static final int PRODUCER_COUNT = 4;
+    /** How many events each producer sends. */
+    private static final int EVENT_COUNT = 20_000;
+    /** Ring size, small enough to wrap. */
+    private static final int RING_SIZE = 64;
+
+    @Test
+    public void testSingleProducer() throws Exception {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            run(ProducerType.SINGLE, strategy, 1);
+        }
+    }
+
+    @Test
+    public void testMultiProducer() throws Exception {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            run(ProducerType.MULTI, strategy, PRODUCER_COUNT);
+        }
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        RingBufferEventBus bus = new RingBufferEventBus(RING_SIZE, ProducerType.SINGLE, WaitStrategy.BLOCKING);
+        bus.close();
+        try {
+            bus.fireEvent(new Sequenced(this, 0, 0));
+            Assert.fail("Exception should have be raised...");
+        } catch (IllegalStateException exc) {
+            // this one is expected
+        }
+    }
+
+    @Test
+    public void testCloseWhilePublishing() throws Exception {
+        for (ProducerType type : ProducerType.values()) {
+            for (int round = 0; round < 50; round++) {
+                int producers = type == ProducerType.SINGLE ? 1 : PRODUCER_COUNT;
+                RingBufferEventBus bus = new RingBufferEventBus(RING_SIZE, type, WaitStrategy.BLOCKING);
+                Checker checker = new Checker(producers);
+                listenAll(bus, checker);
+                ExecutorService pool = Executors.newFixedThreadPool(producers);
+                List<Future<Integer>> tasks = new ArrayList<>(producers);
+                for (int p = 0; p < producers; p++) {
+                    final int producer = p;
+                    tasks.add(pool.submit(() -> {
+                        int sent = 0;
+                        try {
+                            while (true) {
+                                bus.fireEvent(new Sequenced(this, producer, sent));
+                                sent += 1;
+                            }
+                        } catch (IllegalStateException ex) {
+                            return sent;
+                        }
+                    }));
+                }
+                Thread.sleep(1);
+                bus.close();
+                int sent = 0;
+                for (Future<Integer> f : tasks) {
+                    sent += f.get();
+                }
+                pool.shutdown();
+                // every accepted event is delivered
+                Assert.assertEquals(sent, checker.count);
+                Assert.assertEquals(0, bus.getBacklog());
+            }
+        }
+    }
+
+    @Test
+    public void testCloseInterrupted() {
+        RingBufferEventBus bus = new RingBufferEventBus(RING_SIZE, ProducerType.MULTI, WaitStrategy.BLOCKING);
+        Thread.currentThread().interrupt();
+        bus.close();
+        Assert.assertTrue(Thread.interrupted());
+    }
+
+    /**
+     * Sends events from some producers and checks they are all received in order.
+     * @param type
+     * @param strategy
+     * @param producers
+     * @throws Exception
+     */
+    private void run(ProducerType type, WaitStrategy strategy, int producers) throws Exception {
+        if (strategy == WaitStrategy.BUSY_SPIN && Runtime.getRuntime().availableProcessors() <= producers) {
+            // spinners need a core each, the consumer included
+            LOGGER.info(type + "/" + strategy + ": skipped, not enough cores");
+            return;
+        }
+        RingBufferEventBus bus = new RingBufferEventBus(RING_SIZE, type, strategy);
+        Checker checker = new Checker(producers);
+        listenAll(bus, checker);
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        long start = System.nanoTime();
+        List<Future<?>> tasks = new ArrayList<>(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < EVENT_COUNT; i++) {
+                    bus.fireEvent(new Sequenced(this, producer, i));
+                }
+            }));
+        }
+        for (Future<?> f : tasks) {
+            f.get();
+        }
+        bus.close();
+        pool.shutdown();
+        LOGGER.info(type + "/" + strategy + ": " + (producers * EVENT_COUNT) + " events in "
+                + ((System.nanoTime() - start) / 1_000_000) + " ms");
+        Assert.assertEquals(producers * EVENT_COUNT, checker.count);
+        Assert.assertEquals(0, bus.getBacklog());
+    }
+
+    private static void listenAll(EventListeners listeners, Checker checker) {
+        listeners.addListener(Sequenced.class, checker, Checker.CHECK);
+    }
+
+    /**
+     * An event numbered by its producer.
+     */
+    public static class Sequenced extends EventObject<RingBufferEventBusTest> {
+
+        private final int producer;
+        private final int number;
+
+        Sequenced(RingBufferEventBusTest src, int producer, int number) {
+            super(src);
+            this.producer = producer;
+            this.number = number;
+        }
+    }
+
+    /**
+     * Checks the events of a producer come in order, only called by the consumer thread.
+     */
+    public static class Checker {
+
+        static final Method CHECK;
+
+        static {
+            try {
+                CHECK = Checker.class.getDeclaredMethod("check", new Class[]{Sequenced.class});
+            } catch (final java.lang.NoSuchMethodException e) {
+                throw new java.lang.RuntimeException("Internal error", e);
+            }
+        }
+
+        private final int[] next;
+        private volatile int count = 0;
+
+        Checker(int producers) {
+            next = new int[producers];
+        }
+
+        public void check(Sequenced evt) {
+            Assert.assertEquals(next[evt.producer], evt.number);
+            next[evt.producer] += 1;
+            count += 1;
+        }
+    }
+}
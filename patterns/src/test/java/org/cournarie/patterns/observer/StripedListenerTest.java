@@ -0,0 +1,99 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Parallel delivery, in order per key.
+ */
+public class StripedListenerTest {
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        OrderChecker checker = new OrderChecker();
+        try (StripedEventListeners listeners = new StripedEventListeners(4)) {
+            listeners.register(checker);
+            Thread[] publishers = new Thread[2];
+            for (int p = 0; p < publishers.length; p++) {
+                final int first = p * 8;
+                publishers[p] = new Thread(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        for (int k = first; k < first + 8; k++) {
+                            listeners.fireEvent(new Step("key-" + k, i));
+                        }
+                    }
+                });
+                publishers[p].start();
+            }
+            for (Thread publisher : publishers) {
+                publisher.join();
+            }
+        }
+        // closing delivers everything queued
+        Assert.assertEquals(0, checker.disorders.get());
+        Assert.assertEquals(16, checker.last.size());
+        for (Integer last : checker.last.values()) {
+            Assert.assertEquals(999, last.intValue());
+        }
+        Assert.assertEquals(2 * 8 * 1000, checker.count.get());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        StripedEventListeners listeners = new StripedEventListeners(3);
+        Assert.assertEquals(3, listeners.getLaneCount());
+        OrderChecker checker = new OrderChecker();
+        listeners.register(checker);
+        for (int i = 0; i < 100; i++) {
+            listeners.fireEvent(new Step("hot", i));
+        }
+        listeners.close();
+        int hot = listeners.getLane("hot");
+        Assert.assertEquals(100, listeners.getDeliveredCount(hot));
+        Assert.assertEquals(0, listeners.getQueueDepth(hot));
+        try {
+            listeners.fireEvent(new Step("hot", 100));
+            Assert.fail("Closed listeners accepted an event");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A step of a key.
+     */
+    public static class Step extends EventObject<String> {
+
+        private final int index;
+
+        public Step(String key, int index) {
+            super(key);
+            this.index = index;
+        }
+    }
+
+    /**
+     * Checks the steps of each key come in order.
+     */
+    public static class OrderChecker {
+
+        private final Map<String, Integer> last = new ConcurrentHashMap<>();
+        private final AtomicInteger disorders = new AtomicInteger();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Subscribe
+        void onStep(Step step) {
+            Integer previous = last.put(step.getSource(), step.index);
+            if (previous == null ? step.index != 0 : previous + 1 != step.index) {
+                disorders.incrementAndGet();
+            }
+            count.incrementAndGet();
+        }
+    }
+}
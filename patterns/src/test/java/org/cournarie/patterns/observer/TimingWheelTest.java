@@ -0,0 +1,131 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Scheduled events.
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testFireAfter() throws Exception {
+        // 4 buckets of 1 ms: the longer delays go through the upper wheels
+        try (TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 4)) {
+            EventListeners listeners = new EventListeners();
+            listeners.setTimingWheel(wheel);
+            Alarms alarms = new Alarms();
+            listeners.register(alarms);
+            long start = System.nanoTime();
+            listeners.fireAfter(new Alarm("late"), 90, TimeUnit.MILLISECONDS);
+            listeners.fireAfter(new Alarm("soon"), 5, TimeUnit.MILLISECONDS);
+            listeners.fireAt(new Alarm("now"), System.currentTimeMillis() - 10);
+            Timeout cancelled = listeners.fireAfter(new Alarm("never"), 30, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(cancelled.cancel());
+            Assert.assertFalse(cancelled.cancel());
+
+            for (int i = 0; i < 3000 && alarms.fired.size() < 3; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("[now, soon, late]", alarms.fired.toString());
+            Assert.assertTrue(alarms.times.get(2) - start >= TimeUnit.MILLISECONDS.toNanos(90));
+            Thread.sleep(50);
+            Assert.assertEquals(3, alarms.fired.size());
+            Assert.assertEquals(0, wheel.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testMany() throws Exception {
+        try (TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 64)) {
+            EventListeners listeners = new EventListeners();
+            listeners.setTimingWheel(wheel);
+            Alarms alarms = new Alarms();
+            listeners.register(alarms);
+            for (int i = 0; i < 100_000; i++) {
+                Timeout timeout = listeners.fireAfter(new Alarm("a"), i % 200, TimeUnit.MILLISECONDS);
+                if (i % 2 == 0) {
+                    timeout.cancel();
+                }
+            }
+            for (int i = 0; i < 3000 && alarms.fired.size() < 50_000; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(50_000, alarms.fired.size());
+            Assert.assertEquals(0, wheel.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testFarDelay() throws Exception {
+        try (TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 4)) {
+            EventListeners listeners = new EventListeners();
+            listeners.setTimingWheel(wheel);
+            Alarms alarms = new Alarms();
+            listeners.register(alarms);
+            Timeout never = listeners.fireAfter(new Alarm("never"), Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            listeners.fireAfter(new Alarm("later"), Long.MAX_VALUE, TimeUnit.DAYS);
+            listeners.fireAt(new Alarm("last"), Long.MAX_VALUE);
+            listeners.fireAfter(new Alarm("soon"), 5, TimeUnit.MILLISECONDS);
+
+            // the far deadlines do not overflow into the past
+            for (int i = 0; i < 3000 && alarms.fired.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            Assert.assertEquals("[soon]", alarms.fired.toString());
+            Assert.assertEquals(3, wheel.getPendingCount());
+            Assert.assertTrue(never.cancel());
+        }
+    }
+
+    @Test
+    public void testPooled() {
+        EventListeners listeners = new EventListeners();
+        EventPool<String, PooledEventTest.Tick> ticks = new EventPool<>(PooledEventTest.Tick::new, 4);
+        try {
+            listeners.fireAfter(ticks.acquire("EUR"), 10, TimeUnit.MILLISECONDS);
+            Assert.fail("Exception should have be raised...");
+        } catch (IllegalArgumentException exc) {
+            // released before delivery otherwise
+        }
+        try {
+            listeners.fireAt(ticks.acquire("USD"), System.currentTimeMillis());
+            Assert.fail("Exception should have be raised...");
+        } catch (IllegalArgumentException exc) {
+            // this one is expected
+        }
+    }
+
+    /**
+     * An alarm.
+     */
+    public static class Alarm extends EventObject<String> {
+
+        public Alarm(String name) {
+            super(name);
+        }
+    }
+
+    /**
+     * Records the alarms.
+     */
+    public static class Alarms {
+
+        private final List<String> fired = Collections.synchronizedList(new ArrayList<>());
+        private final List<Long> times = Collections.synchronizedList(new ArrayList<>());
+
+        @Subscribe
+        void onAlarm(Alarm alarm) {
+            times.add(System.nanoTime());
+            fired.add(alarm.getSource());
+        }
+    }
+}
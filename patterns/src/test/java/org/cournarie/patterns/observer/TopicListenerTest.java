@@ -0,0 +1,103 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Topic routing.
+ */
+public class TopicListenerTest {
+
+    @Test
+    public void testWildcards() {
+        TopicEventListeners listeners = new TopicEventListeners();
+        Recorder exact = new Recorder("exact");
+        Recorder one = new Recorder("one");
+        Recorder all = new Recorder("all");
+        List<String> calls = new ArrayList<>();
+        exact.calls = calls;
+        one.calls = calls;
+        all.calls = calls;
+        listeners.register("orders.eu.fr.created", exact);
+        listeners.register("orders.eu.*", one);
+        listeners.register("orders.#", all);
+
+        listeners.fireEvent("orders.eu.fr.created", new Order("A"));
+        listeners.fireEvent("orders.eu.fr", new Order("B"));
+        listeners.fireEvent("orders", new Order("C"));
+        listeners.fireEvent("quotes.eu.fr", new Order("D"));
+        Assert.assertEquals("[exact:A, all:A, one:B, all:B, all:C]", calls.toString());
+
+        // class based listeners do not get topic events
+        Recorder plain = new Recorder("plain");
+        plain.calls = calls;
+        listeners.register(plain);
+        listeners.fireEvent("orders", new Order("E"));
+        Assert.assertEquals("all:E", calls.get(calls.size() - 1));
+    }
+
+    @Test
+    public void testClose() {
+        TopicEventListeners listeners = new TopicEventListeners();
+        Recorder one = new Recorder("one");
+        one.calls = new ArrayList<>();
+        Subscription s = listeners.register("orders.*.fr", one);
+        listeners.fireEvent("orders.eu.fr", new Order("A"));
+        s.close();
+        Assert.assertFalse(s.isActive());
+        listeners.fireEvent("orders.eu.fr", new Order("B"));
+        Assert.assertEquals("[one:A]", one.calls.toString());
+    }
+
+    @Test
+    public void testInvalidTopics() {
+        TopicEventListeners listeners = new TopicEventListeners();
+        for (String pattern : new String[] {"", "orders..eu", "orders.e*", "orders.#x"}) {
+            try {
+                listeners.register(pattern, new Recorder("bad"));
+                Assert.fail("Invalid pattern accepted: " + pattern);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            listeners.fireEvent("orders.*", new Order("A"));
+            Assert.fail("Wildcard topic accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * An order event.
+     */
+    public static class Order extends EventObject<String> {
+
+        public Order(String id) {
+            super(id);
+        }
+    }
+
+    /**
+     * Records the orders it gets.
+     */
+    public static class Recorder {
+
+        private final String name;
+        private List<String> calls;
+
+        public Recorder(String name) {
+            this.name = name;
+        }
+
+        @Subscribe
+        void onOrder(Order order) {
+            calls.add(name + ":" + order.getSource());
+        }
+    }
+}
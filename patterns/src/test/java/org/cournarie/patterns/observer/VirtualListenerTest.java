@@ -0,0 +1,131 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.cournarie.patterns.observer.EventCallback.MethodException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Thread per invocation delivery.
+ */
+public class VirtualListenerTest {
+
+    @Test
+    public void testBlockingListener() throws Exception {
+        VirtualEventListeners listeners = new VirtualEventListeners();
+        Blocking blocking = new Blocking(10);
+        Blocking other = new Blocking(0);
+        listeners.register(blocking);
+        listeners.register(other);
+
+        // the publisher and the other listener do not wait for the blocked one
+        CompletableFuture<Void> done = listeners.fireEventAsync(new Job(this));
+        other.called.await(30, TimeUnit.SECONDS);
+        Assert.assertFalse(done.isDone());
+        Assert.assertTrue(listeners.getInFlightCount() >= 1);
+
+        blocking.release.countDown();
+        done.get(30, TimeUnit.SECONDS);
+        Assert.assertNotEquals(Thread.currentThread().getName(), blocking.thread);
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        VirtualEventListeners listeners = new VirtualEventListeners();
+        Blocking blocking = new Blocking(5);
+        listeners.register(blocking, 2);
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            calls.add(listeners.fireEventAsync(new Job(this)));
+        }
+        for (int i = 0; i < 3000 && blocking.running.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        // the other invocations wait for a permit
+        Thread.sleep(50);
+        Assert.assertEquals(2, blocking.running.get());
+        blocking.release.countDown();
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(2, blocking.max.get());
+        Assert.assertEquals(0, listeners.getInFlightCount());
+    }
+
+    @Test
+    public void testDefaultLimitAndFailure() throws Exception {
+        VirtualEventListeners listeners = new VirtualEventListeners(1);
+        Blocking blocking = new Blocking(0);
+        listeners.register(blocking);
+        listeners.register(new Failing());
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            calls.add(listeners.fireEventAsync(new Job(this)));
+        }
+        for (CompletableFuture<Void> call : calls) {
+            try {
+                call.get(30, TimeUnit.SECONDS);
+                Assert.fail("Exception should have be raised...");
+            } catch (ExecutionException exc) {
+                Assert.assertTrue(exc.getCause() instanceof MethodException);
+            }
+        }
+        Assert.assertEquals(1, blocking.max.get());
+        // no listener, nothing to wait for
+        Assert.assertTrue(new VirtualEventListeners().fireEventAsync(new Job(this)).isDone());
+    }
+
+    /**
+     * A job event.
+     */
+    public static class Job extends EventObject<VirtualListenerTest> {
+
+        Job(VirtualListenerTest src) {
+            super(src);
+        }
+    }
+
+    /**
+     * Blocks until released, tracking the concurrent calls.
+     */
+    static class Blocking {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch called = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final long timeout;
+        volatile String thread;
+
+        Blocking(long timeout) {
+            this.timeout = timeout;
+        }
+
+        @Subscribe
+        void onJob(Job job) throws InterruptedException {
+            max.accumulateAndGet(running.incrementAndGet(), Math::max);
+            thread = Thread.currentThread().getName();
+            called.countDown();
+            release.await(timeout, TimeUnit.SECONDS);
+            running.decrementAndGet();
+        }
+    }
+
+    /**
+     * Always fails.
+     */
+    static class Failing {
+
+        @Subscribe
+        void onJob(Job job) {
+            throw new IllegalStateException("Failing");
+        }
+    }
+}
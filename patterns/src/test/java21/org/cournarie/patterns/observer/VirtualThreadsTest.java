@@ -0,0 +1,30 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Virtual thread delivery, Java 21 only.
+ */
+public class VirtualThreadsTest {
+
+    @Test
+    public void testVirtual() throws Exception {
+        Assert.assertTrue(VirtualEventListeners.isVirtual());
+        VirtualEventListeners listeners = new VirtualEventListeners(1);
+        CompletableFuture<Thread> called = new CompletableFuture<>();
+        listeners.register(new Object() {
+            @Subscribe
+            void onJob(VirtualListenerTest.Job job) {
+                called.complete(Thread.currentThread());
+            }
+        });
+        listeners.fireEventAsync(new VirtualListenerTest.Job(new VirtualListenerTest())).get(30, TimeUnit.SECONDS);
+        Assert.assertTrue(called.get().isVirtual());
+    }
+}
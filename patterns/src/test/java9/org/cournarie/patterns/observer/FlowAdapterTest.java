@@ -0,0 +1,167 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.observer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Flow publisher and subscriber adapters.
+ */
+public class FlowAdapterTest {
+
+    @Test
+    public void testDemand() {
+        EventListeners listeners = new EventListeners();
+        EventPublisher<Quote> publisher = new EventPublisher<>(listeners, Quote.class, 4, OverflowPolicy.DROP_OLDEST);
+        Collector collector = new Collector();
+        publisher.subscribe(collector);
+        collector.subscription.request(2);
+
+        // two sent as requested, the last four buffered
+        for (int i = 0; i < 10; i++) {
+            listeners.fireEvent(new Quote("q" + i));
+        }
+        Assert.assertEquals("[q0, q1]", collector.quotes.toString());
+        collector.subscription.request(10);
+        Assert.assertEquals("[q0, q1, q6, q7, q8, q9]", collector.quotes.toString());
+
+        // then as fired, until completion
+        listeners.fireEvent(new Quote("q10"));
+        publisher.close();
+        Assert.assertEquals(7, collector.quotes.size());
+        Assert.assertTrue(collector.completed);
+        listeners.fireEvent(new Quote("q11"));
+        Assert.assertEquals(7, collector.quotes.size());
+    }
+
+    @Test
+    public void testCloseUnregisters() {
+        EventListeners listeners = new EventListeners();
+        EventPublisher<Quote> publisher = new EventPublisher<>(listeners, Quote.class, 4, OverflowPolicy.FAIL);
+        Collector collector = new Collector();
+        publisher.subscribe(collector);
+        listeners.fireEvent(new Quote("q0"));
+        Assert.assertEquals(1, listeners.callbacks().length);
+
+        // nothing requested: not completed yet, but no longer listening
+        publisher.close();
+        Assert.assertEquals(0, listeners.callbacks().length);
+        listeners.fireEvent(new Quote("q1"));
+        Assert.assertFalse(collector.completed);
+        collector.subscription.request(10);
+        Assert.assertEquals("[q0]", collector.quotes.toString());
+        Assert.assertTrue(collector.completed);
+    }
+
+    @Test
+    public void testInvalidRequest() {
+        EventPublisher<Quote> publisher = new EventPublisher<>(new EventListeners(), Quote.class, 4,
+                OverflowPolicy.FAIL);
+        Collector collector = new Collector();
+        publisher.subscribe(collector);
+        collector.subscription.request(0);
+        Assert.assertTrue(collector.error instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testSubscriber() throws Exception {
+        EventListeners listeners = new EventListeners();
+        QuoteListener listener = new QuoteListener();
+        listeners.register(listener);
+        EventSubscriber subscriber = new EventSubscriber(listeners, 8);
+        try (SubmissionPublisher<EventObject<?>> upstream = new SubmissionPublisher<>()) {
+            upstream.subscribe(subscriber);
+            for (int i = 0; i < 100; i++) {
+                upstream.submit(new Quote("q" + i));
+            }
+        }
+        for (int i = 0; i < 3000 && !subscriber.isDone(); i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        Assert.assertTrue(subscriber.isDone());
+        Assert.assertEquals(100, subscriber.getReceivedCount());
+        Assert.assertEquals("q99", listener.last);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPooledType() {
+        new EventPublisher<>(new EventListeners(), PooledEventTest.Tick.class, 4, OverflowPolicy.FAIL);
+    }
+
+    @Test
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void testPooled() {
+        EventListeners listeners = new EventListeners();
+        // every event type, pooled ones included
+        EventPublisher publisher = new EventPublisher(listeners, EventObject.class, 4, OverflowPolicy.FAIL);
+        publisher.subscribe(new Collector());
+        try {
+            listeners.fireAndRelease(new EventPool<>(PooledEventTest.Tick::new, 4).acquire("EUR"));
+            Assert.fail("Exception should have be raised...");
+        } catch (EventCallback.MethodException exc) {
+            // released before sent otherwise
+            Assert.assertTrue(exc.getCause().getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    /**
+     * A quote.
+     */
+    public static class Quote extends EventObject<String> {
+
+        public Quote(String id) {
+            super(id);
+        }
+    }
+
+    /**
+     * Keeps the last quote fired.
+     */
+    public static class QuoteListener {
+
+        private volatile String last;
+
+        @Subscribe
+        void onQuote(Quote quote) {
+            last = quote.getSource();
+        }
+    }
+
+    /**
+     * Collects quotes, requesting by hand.
+     */
+    public static class Collector implements Flow.Subscriber<Quote> {
+
+        private final List<String> quotes = new ArrayList<>();
+        private Flow.Subscription subscription;
+        private boolean completed;
+        private Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(Quote item) {
+            quotes.add(item.getSource());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates the {@code Dispatcher} of each class declaring {@code Subscribe} methods.
+ * <p>
+ * The dispatcher calls the handlers of the class and of its ancestors directly, with a switch
+ * over the handler index, so that registering a listener neither scans nor unreflects its
+ * methods. A class with a handler the dispatcher cannot call, private or out of reach from
+ * its package, gets no dispatcher and a warning: it is still registered by reflection, as
+ * are the subclasses declaring no handler of their own.
+ */
+@SupportedAnnotationTypes(DispatcherProcessor.SUBSCRIBE)
+public class DispatcherProcessor extends AbstractProcessor {
+
+    /** The handler annotation. */
+    static final String SUBSCRIBE = "org.cournarie.patterns.observer.Subscribe";
+    /** The dispatcher interface. */
+    private static final String DISPATCHER = "org.cournarie.patterns.observer.Dispatcher";
+    /** The event base class. */
+    private static final String EVENT_OBJECT = "org.cournarie.patterns.observer.EventObject";
+    /** Suffix of a dispatcher class name, as {@code Dispatcher.SUFFIX}. */
+    private static final String SUFFIX = "$$Dispatcher";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        final TypeElement subscribe = processingEnv.getElementUtils().getTypeElement(SUBSCRIBE);
+        if (subscribe == null) {
+            return false;
+        }
+        final Set<TypeElement> listeners = new LinkedHashSet<>();
+        for (Element element : round.getElementsAnnotatedWith(subscribe)) {
+            final Element type = element.getEnclosingElement();
+            // an instance class is never abstract, nor an interface
+            if (element.getKind() == ElementKind.METHOD && type.getKind().isClass()
+                    && !type.getModifiers().contains(Modifier.ABSTRACT)) {
+                listeners.add((TypeElement) type);
+            }
+        }
+        for (TypeElement listener : listeners) {
+            generate(listener, subscribe);
+        }
+        // the annotation is read at runtime too, left to other processors
+        return false;
+    }
+
+    /**
+     * Generates the dispatcher of a listener class.
+     * @param listener the listener class
+     * @param subscribe the handler annotation
+     */
+    private void generate(TypeElement listener, TypeElement subscribe) {
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(listener);
+        final List<HandlerMethod> handlers = new ArrayList<>();
+        final Set<String> seen = new HashSet<>();
+        boolean valid = true;
+        for (TypeElement type = listener; type != null; type = superclass(type)) {
+            for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                if (!annotated(method, subscribe)) {
+                    continue;
+                }
+                // an overridden handler is registered once
+                if (!seen.add(method.getSimpleName() + signature(method))) {
+                    continue;
+                }
+                final HandlerMethod handler = handler(method, type == listener);
+                if (handler == null) {
+                    valid = false;
+                } else {
+                    handlers.add(handler);
+                }
+            }
+        }
+        if (!valid || handlers.isEmpty()) {
+            return;
+        }
+        Element unreachable = accessible(listener, pkg) ? null : listener;
+        for (int i = 0; i < handlers.size() && unreachable == null; i++) {
+            if (!accessible(handlers.get(i), pkg)) {
+                unreachable = handlers.get(i).method;
+            }
+        }
+        if (unreachable != null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "No dispatcher generated, "
+                    + unreachable + " is not accessible from package " + pkg + ": registered by reflection", listener);
+            return;
+        }
+        write(listener, pkg, handlers);
+    }
+
+    /**
+     * Checks a handler method is annotated.
+     * @param method
+     * @param subscribe the handler annotation
+     * @return true if annotated
+     */
+    private boolean annotated(ExecutableElement method, TypeElement subscribe) {
+        for (AnnotationMirror annotation : method.getAnnotationMirrors()) {
+            if (annotation.getAnnotationType().asElement().equals(subscribe)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the erased parameter types of a method.
+     * @param method
+     * @return the parameter types, as text
+     */
+    private String signature(ExecutableElement method) {
+        final StringBuilder signature = new StringBuilder("(");
+        for (VariableElement parameter : method.getParameters()) {
+            signature.append(processingEnv.getTypeUtils().erasure(parameter.asType())).append(',');
+        }
+        return signature.append(')').toString();
+    }
+
+    /**
+     * Gets the superclass of a class.
+     * @param type
+     * @return the superclass, null for a direct Object subclass
+     */
+    private TypeElement superclass(TypeElement type) {
+        final TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        final TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+        return element.getQualifiedName().contentEquals(Object.class.getName()) ? null : element;
+    }
+
+    /**
+     * Checks an annotated method and gets its event type.
+     * @param method
+     * @param declared true if declared by the listener class, its errors are reported
+     * @return the handler, null if the method does not take a single event or a list of it
+     */
+    private HandlerMethod handler(ExecutableElement method, boolean declared) {
+        final TypeMirror event = processingEnv.getTypeUtils()
+                .erasure(processingEnv.getElementUtils().getTypeElement(EVENT_OBJECT).asType());
+        if (method.getParameters().size() != 1) {
+            return invalid(method, declared, "@Subscribe method must take a single event");
+        }
+        final TypeMirror parameter = method.getParameters().get(0).asType();
+        final TypeMirror erased = processingEnv.getTypeUtils().erasure(parameter);
+        if (processingEnv.getTypeUtils().isAssignable(erased, event)) {
+            return new HandlerMethod(method, erased, false);
+        }
+        if (parameter.getKind() == TypeKind.DECLARED && ((DeclaredType) parameter).asElement().toString()
+                .equals(List.class.getName()) && ((DeclaredType) parameter).getTypeArguments().size() == 1) {
+            TypeMirror element = ((DeclaredType) parameter).getTypeArguments().get(0);
+            if (element.getKind() == TypeKind.WILDCARD) {
+                element = ((WildcardType) element).getExtendsBound();
+            }
+            if (element != null) {
+                element = processingEnv.getTypeUtils().erasure(element);
+                if (processingEnv.getTypeUtils().isAssignable(element, event)) {
+                    return new HandlerMethod(method, element, true);
+                }
+            }
+        }
+        return invalid(method, declared, "@Subscribe method must take an EventObject or a List of it");
+    }
+
+    /**
+     * Reports an invalid handler method.
+     * @param method
+     * @param declared true to report it, else it was reported with its own class
+     * @param message
+     * @return null
+     */
+    private HandlerMethod invalid(ExecutableElement method, boolean declared, String message) {
+        if (declared) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, method);
+        }
+        return null;
+    }
+
+    /**
+     * Checks the dispatcher can call a handler.
+     * @param handler
+     * @param pkg the dispatcher package
+     * @return true if accessible
+     */
+    private boolean accessible(HandlerMethod handler, PackageElement pkg) {
+        final Set<Modifier> modifiers = handler.method.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        final TypeElement declaring = (TypeElement) handler.method.getEnclosingElement();
+        return (modifiers.contains(Modifier.PUBLIC) || samePackage(declaring, pkg))
+                && accessible(declaring, pkg)
+                && accessible((TypeElement) processingEnv.getTypeUtils().asElement(handler.eventType), pkg);
+    }
+
+    /**
+     * Checks the dispatcher can name a class.
+     * @param type
+     * @param pkg the dispatcher package
+     * @return true if accessible
+     */
+    private boolean accessible(TypeElement type, PackageElement pkg) {
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            final Set<Modifier> modifiers = e.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)
+                    || !modifiers.contains(Modifier.PUBLIC) && !samePackage(e, pkg)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks an element belongs to a package.
+     * @param element
+     * @param pkg
+     * @return true if in the package
+     */
+    private boolean samePackage(Element element, PackageElement pkg) {
+        return processingEnv.getElementUtils().getPackageOf(element).equals(pkg);
+    }
+
+    /**
+     * Writes the dispatcher source.
+     * @param listener the listener class
+     * @param pkg its package
+     * @param handlers its handlers
+     */
+    private void write(TypeElement listener, PackageElement pkg, List<HandlerMethod> handlers) {
+        final String binary = processingEnv.getElementUtils().getBinaryName(listener).toString();
+        final String simple = (pkg.isUnnamed() ? binary : binary.substring(pkg.getQualifiedName().length() + 1))
+                + SUFFIX;
+        final String type = listener.getQualifiedName().toString();
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(pkg.isUnnamed() ? simple : pkg.getQualifiedName() + "." + simple, listener)
+                .openWriter())) {
+            if (!pkg.isUnnamed()) {
+                out.println("package " + pkg.getQualifiedName() + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Dispatcher of {@link " + type + "}, generated by " + getClass().getName() + ".");
+            out.println(" */");
+            out.println("@SuppressWarnings({\"rawtypes\", \"unchecked\"})");
+            out.println("public final class " + simple + " implements " + DISPATCHER + "<" + type + "> {");
+            out.println();
+            out.println("    private static final Class<?>[] DECLARING = {" + join(handlers, 0) + "};");
+            out.println("    private static final String[] NAMES = {" + join(handlers, 1) + "};");
+            out.println("    private static final Class[] EVENT_TYPES = {" + join(handlers, 2) + "};");
+            out.println("    private static final boolean[] BATCH = {" + join(handlers, 3) + "};");
+            out.println();
+            out.println("    @Override");
+            out.println("    public int getHandlerCount() {");
+            out.println("        return " + handlers.size() + ";");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public Class<?> getDeclaringClass(int handler) {");
+            out.println("        return DECLARING[handler];");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public String getName(int handler) {");
+            out.println("        return NAMES[handler];");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public Class<? extends " + EVENT_OBJECT + "> getEventType(int handler) {");
+            out.println("        return EVENT_TYPES[handler];");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public boolean isBatch(int handler) {");
+            out.println("        return BATCH[handler];");
+            out.println("    }");
+            writeDispatch(out, type, handlers, false);
+            writeDispatch(out, type, handlers, true);
+            out.println("}");
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Cannot write dispatcher " + simple + ": " + ex, listener);
+        }
+    }
+
+    /**
+     * Writes a dispatch method, a switch over the handler index.
+     * @param out
+     * @param type the listener class name
+     * @param handlers
+     * @param batch true for the batch handlers
+     */
+    private void writeDispatch(PrintWriter out, String type, List<HandlerMethod> handlers, boolean batch) {
+        out.println();
+        out.println("    @Override");
+        if (batch) {
+            out.println("    public void dispatchAll(" + type + " listener, int handler, java.util.List<? extends "
+                    + EVENT_OBJECT + "<?>> events) {");
+        } else {
+            out.println("    public void dispatch(" + type + " listener, int handler, " + EVENT_OBJECT
+                    + "<?> event) {");
+        }
+        out.println("        switch (handler) {");
+        for (int i = 0; i < handlers.size(); i++) {
+            final HandlerMethod handler = handlers.get(i);
+            if (handler.batch != batch) {
+                continue;
+            }
+            final String target = handler.method.getModifiers().contains(Modifier.STATIC)
+                    ? name(handler.method.getEnclosingElement().asType()) : "listener";
+            out.println("            case " + i + ":");
+            out.println("                " + target + "." + handler.method.getSimpleName() + "(("
+                    + (batch ? "java.util.List) events" : name(handler.eventType) + ") event") + ");");
+            out.println("                return;");
+        }
+        out.println("            default:");
+        out.println("                throw new IllegalArgumentException(\"Not a" + (batch ? " batch" : " single event")
+                + " handler: \" + handler);");
+        out.println("        }");
+        out.println("    }");
+    }
+
+    /**
+     * Joins a column of the handler tables.
+     * @param handlers
+     * @param column 0 declaring class, 1 name, 2 event type, 3 batch
+     * @return the comma separated values
+     */
+    private String join(List<HandlerMethod> handlers, int column) {
+        final StringBuilder values = new StringBuilder();
+        for (HandlerMethod handler : handlers) {
+            if (values.length() > 0) {
+                values.append(", ");
+            }
+            switch (column) {
+                case 0:
+                    values.append(name(handler.method.getEnclosingElement().asType())).append(".class");
+                    break;
+                case 1:
+                    values.append('"').append(handler.method.getSimpleName()).append('"');
+                    break;
+                case 2:
+                    values.append(name(handler.eventType)).append(".class");
+                    break;
+                default:
+                    values.append(handler.batch);
+                    break;
+            }
+        }
+        return values.toString();
+    }
+
+    /**
+     * Gets the source name of an erased class type.
+     * @param type
+     * @return the qualified name
+     */
+    private String name(TypeMirror type) {
+        return ((TypeElement) processingEnv.getTypeUtils().asElement(type)).getQualifiedName().toString();
+    }
+
+    /**
+     * A handler method.
+     */
+    private static final class HandlerMethod {
+
+        /** The method. */
+        final ExecutableElement method;
+        /** The erased event type. */
+        final TypeMirror eventType;
+        /** Whether the method takes a list of events. */
+        final boolean batch;
+
+        /**
+         * Creates a new handler method.
+         * @param method
+         * @param eventType
+         * @param batch
+         */
+        HandlerMethod(ExecutableElement method, TypeMirror eventType, boolean batch) {
+            this.method = method;
+            this.eventType = eventType;
+            this.batch = batch;
+        }
+    }
+}
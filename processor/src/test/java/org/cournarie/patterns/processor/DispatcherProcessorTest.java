@@ -0,0 +1,191 @@
+/*
+ * Copyright Eric Cournarie 2017
+ */
+package org.cournarie.patterns.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.cournarie.patterns.observer.Dispatcher;
+import org.cournarie.patterns.observer.EventListeners;
+import org.cournarie.patterns.observer.EventObject;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Dispatcher generation.
+ */
+public class DispatcherProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+    @Test
+    public void testGenerated() throws Exception {
+        source("sample/Ping.java",
+                "package sample;",
+                "public class Ping extends org.cournarie.patterns.observer.EventObject<StringBuilder> {",
+                "    public Ping(StringBuilder src) { super(src); }",
+                "}");
+        source("sample/Base.java",
+                "package sample;",
+                "import org.cournarie.patterns.observer.Subscribe;",
+                "public class Base {",
+                "    @Subscribe public void onBase(Ping ping) { ping.getSource().append(\"base \"); }",
+                "    @Subscribe void onOverridden(Ping ping) { ping.getSource().append(\"no \"); }",
+                "}");
+        source("sample/Outer.java",
+                "package sample;",
+                "import java.util.List;",
+                "import org.cournarie.patterns.observer.Subscribe;",
+                "public class Outer {",
+                "    public static class Listener extends Base {",
+                "        @Subscribe void onPing(Ping ping) {",
+                "            // the caller, the dispatcher unless called by reflection",
+                "            String caller = new Throwable().getStackTrace()[1].getClassName();",
+                "            ping.getSource().append(\"ping@\" + caller + \" \");",
+                "        }",
+                "        @Subscribe void onPings(List<? extends Ping> pings) {",
+                "            pings.get(0).getSource().append(\"all \");",
+                "        }",
+                "        @Override void onOverridden(Ping ping) { ping.getSource().append(\"overridden \"); }",
+                "        @Subscribe static void onStatic(Ping ping) { ping.getSource().append(\"static \"); }",
+                "    }",
+                "}");
+        Assert.assertTrue(diagnostics.getDiagnostics().toString(), compile());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classes().toURI().toURL()},
+                getClass().getClassLoader())) {
+            Class<?> listenerClass = loader.loadClass("sample.Outer$Listener");
+            Class<?> generated = loader.loadClass("sample.Outer$Listener" + Dispatcher.SUFFIX);
+            Dispatcher<?> dispatcher = (Dispatcher<?>) generated.getConstructor().newInstance();
+            Assert.assertEquals(5, dispatcher.getHandlerCount());
+            Assert.assertEquals(Arrays.asList("onPing", "onPings", "onStatic", "onBase", "onOverridden"),
+                    Arrays.asList(dispatcher.getName(0), dispatcher.getName(1), dispatcher.getName(2),
+                            dispatcher.getName(3), dispatcher.getName(4)));
+            Assert.assertTrue(dispatcher.isBatch(1));
+            Assert.assertEquals(loader.loadClass("sample.Base"), dispatcher.getDeclaringClass(3));
+
+            // registered through the dispatcher, which calls the handlers
+            EventListeners listeners = new EventListeners();
+            Object listener = listenerClass.getDeclaredConstructor().newInstance();
+            listeners.register(listener);
+            Class<?> pingClass = loader.loadClass("sample.Ping");
+            StringBuilder calls = new StringBuilder();
+            listeners.fireEvent((EventObject<?>) pingClass.getConstructor(StringBuilder.class).newInstance(calls));
+            List<String> called = Arrays.asList(calls.toString().split(" "));
+            Collections.sort(called);
+            Assert.assertEquals(Arrays.asList("all", "base", "overridden", "ping@" + generated.getName(), "static"),
+                    called);
+
+            // the handler methods are still found for removal
+            listeners.removeListener(pingClass, listener, listenerClass.getDeclaredMethod("onPing", pingClass));
+            calls.setLength(0);
+            listeners.fireEvent((EventObject<?>) pingClass.getConstructor(StringBuilder.class).newInstance(calls));
+            Assert.assertFalse(calls.toString().contains("ping@"));
+            Assert.assertTrue(calls.toString().contains("base"));
+        }
+    }
+
+    @Test
+    public void testNotAccessible() throws Exception {
+        source("sample/Hidden.java",
+                "package sample;",
+                "import org.cournarie.patterns.observer.Subscribe;",
+                "public class Hidden {",
+                "    @Subscribe private void onPing(Ping ping) { }",
+                "}",
+                "class Ping extends org.cournarie.patterns.observer.EventObject<String> {",
+                "    Ping(String src) { super(src); }",
+                "}");
+        Assert.assertTrue(diagnostics.getDiagnostics().toString(), compile());
+        Assert.assertFalse(new File(classes(), "sample/Hidden" + Dispatcher.SUFFIX + ".class").exists());
+        Assert.assertEquals(1, messages(Diagnostic.Kind.WARNING).size());
+        Assert.assertTrue(messages(Diagnostic.Kind.WARNING).get(0).contains("registered by reflection"));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        source("sample/Invalid.java",
+                "package sample;",
+                "import java.util.List;",
+                "import org.cournarie.patterns.observer.Subscribe;",
+                "public class Invalid {",
+                "    @Subscribe void onStrings(List<String> strings) { }",
+                "    @Subscribe void onNothing() { }",
+                "}");
+        Assert.assertFalse(compile());
+        Assert.assertEquals(Arrays.asList("@Subscribe method must take an EventObject or a List of it",
+                "@Subscribe method must take a single event"), messages(Diagnostic.Kind.ERROR));
+    }
+
+    /**
+     * Writes a source file.
+     * @param path
+     * @param lines
+     * @throws IOException
+     */
+    private void source(String path, String... lines) throws IOException {
+        final File file = new File(folder.getRoot(), "src/" + path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compiles the sources with the processor, against the patterns classes.
+     * @return true if compiled
+     * @throws IOException
+     */
+    private boolean compile() throws IOException {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, Locale.ROOT,
+                StandardCharsets.UTF_8)) {
+            final File patterns = new File(EventObject.class.getProtectionDomain().getCodeSource().getLocation()
+                    .getPath());
+            classes().mkdirs();
+            final List<File> sources = Files.walk(new File(folder.getRoot(), "src").toPath())
+                    .filter(p -> p.toString().endsWith(".java")).map(p -> p.toFile()).collect(Collectors.toList());
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics,
+                    Arrays.asList("-classpath", patterns.getPath(), "-d", classes().getPath()), null,
+                    files.getJavaFileObjectsFromFiles(sources));
+            task.setProcessors(Collections.singletonList(new DispatcherProcessor()));
+            return task.call();
+        }
+    }
+
+    /**
+     * Gets the compiled classes directory.
+     * @return the directory
+     */
+    private File classes() {
+        return new File(folder.getRoot(), "classes");
+    }
+
+    /**
+     * Gets the reported messages of a kind.
+     * @param kind
+     * @return the messages
+     */
+    private List<String> messages(Diagnostic.Kind kind) {
+        return diagnostics.getDiagnostics().stream().filter(d -> d.getKind() == kind)
+                .map(d -> d.getMessage(Locale.ROOT)).collect(Collectors.toList());
+    }
+}